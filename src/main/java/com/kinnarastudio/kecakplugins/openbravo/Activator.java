@@ -3,6 +3,8 @@ package com.kinnarastudio.kecakplugins.openbravo;
 import java.util.ArrayList;
 import java.util.Collection;
 
+import com.kinnarastudio.kecakplugins.openbravo.commons.BackgroundExecutor;
+import com.kinnarastudio.kecakplugins.openbravo.commons.HttpClientPool;
 import com.kinnarastudio.kecakplugins.openbravo.datalist.*;
 import com.kinnarastudio.kecakplugins.openbravo.form.*;
 
@@ -62,5 +64,11 @@ public class Activator implements BundleActivator {
         for (ServiceRegistration registration : registrationList) {
             registration.unregister();
         }
+
+        // HTTP connection pool
+        HttpClientPool.shutdown();
+
+        // background requests
+        BackgroundExecutor.shutdown();
     }
 }
\ No newline at end of file
@@ -0,0 +1,69 @@
+package com.kinnarastudio.kecakplugins.openbravo.commons;
+
+import javax.annotation.Nonnull;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Shared daemon threads for background Openbravo requests such as prefetching the next page.
+ * Tasks must not depend on Kecak thread-local context, resolve hash variables and
+ * properties before submitting.
+ * <p>
+ * Executors are created lazily and created again after {@link #shutdown()}, so the bundle
+ * can be stopped and started without reloading this class.
+ */
+public final class BackgroundExecutor {
+    public final static String PROPERTY_MAX_THREADS = "openbravo.executor.maxThreads";
+    public final static int DEFAULT_MAX_THREADS = 32;
+
+    private static ExecutorService executor = null;
+    private static ExecutorService boundedExecutor = null;
+
+    private BackgroundExecutor() {
+    }
+
+    @Nonnull
+    public static synchronized ExecutorService getInstance() {
+        if (executor == null || executor.isShutdown()) {
+            executor = Executors.newCachedThreadPool(runnable -> {
+                final Thread thread = new Thread(runnable, "openbravo-background");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * Fixed number of threads, tuned using {@value #PROPERTY_MAX_THREADS}, for bulk requests sent on behalf
+     * of a user action. Callers waiting for their tasks must also work themselves, see {@link BulkRequestExecutor}.
+     *
+     * @return shared bounded executor
+     */
+    @Nonnull
+    public static synchronized ExecutorService getBoundedInstance() {
+        if (boundedExecutor == null || boundedExecutor.isShutdown()) {
+            boundedExecutor = Executors.newFixedThreadPool(PropertyParser.getSystemInt(PROPERTY_MAX_THREADS, 1, DEFAULT_MAX_THREADS), runnable -> {
+                final Thread thread = new Thread(runnable, "openbravo-bulk");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return boundedExecutor;
+    }
+
+    /**
+     * Stop all threads, called when bundle is stopped
+     */
+    public static synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+
+        if (boundedExecutor != null) {
+            boundedExecutor.shutdownNow();
+            boundedExecutor = null;
+        }
+    }
+}
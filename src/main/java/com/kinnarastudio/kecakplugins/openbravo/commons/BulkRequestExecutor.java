@@ -0,0 +1,123 @@
+package com.kinnarastudio.kecakplugins.openbravo.commons;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Send one request per key using a bounded number of parallel workers.
+ * <p>
+ * Workers run on {@link BackgroundExecutor#getBoundedInstance()} and share the pooled clients of
+ * {@link HttpClientPool}, keep workers at or below {@link HttpClientPool#PROPERTY_MAX_PER_ROUTE}.
+ * The calling thread works as well and never waits for a worker that has not started, so nested
+ * calls cannot starve the shared pool. Requests must not depend on Kecak thread-local context,
+ * resolve hash variables and properties before calling {@link #execute(Collection, int, Request)}.
+ */
+public final class BulkRequestExecutor {
+    private BulkRequestExecutor() {
+    }
+
+    /**
+     * @param keys    record keys
+     * @param workers max parallel requests, including the calling thread
+     * @param request request sent for each key
+     * @param <K>     key type
+     * @return failure message per key in keys order, empty when all requests succeed
+     * @throws InterruptedException when interrupted while waiting for requests
+     */
+    @Nonnull
+    public static <K> Map<K, String> execute(@Nonnull Collection<K> keys, int workers, @Nonnull Request<K> request) throws InterruptedException {
+        final Queue<K> queue = new ConcurrentLinkedQueue<>(keys);
+        final Map<K, String> failures = new ConcurrentHashMap<>();
+
+        final List<Worker<K>> helpers = new ArrayList<>();
+        for (int i = 1; i < Math.min(workers, keys.size()); i++) {
+            final Worker<K> helper = new Worker<>(queue, request, failures);
+            try {
+                BackgroundExecutor.getBoundedInstance().execute(helper);
+                helpers.add(helper);
+            } catch (RejectedExecutionException e) {
+                break;
+            }
+        }
+
+        new Worker<>(queue, request, failures).run();
+
+        for (Worker<K> helper : helpers) {
+            helper.await();
+        }
+
+        final Map<K, String> orderedFailures = new LinkedHashMap<>();
+        for (K key : keys) {
+            Optional.ofNullable(failures.get(key)).ifPresent(message -> orderedFailures.put(key, message));
+        }
+        return orderedFailures;
+    }
+
+    private static String getMessage(Throwable e) {
+        return Optional.ofNullable(e.getMessage()).orElseGet(() -> e.getClass().getSimpleName());
+    }
+
+    @FunctionalInterface
+    public interface Request<K> {
+        void send(K key) throws Exception;
+    }
+
+    private static class Worker<K> implements Runnable {
+        private final Queue<K> queue;
+        private final Request<K> request;
+        private final Map<K, String> failures;
+
+        /**
+         * Claimed by the pool thread when it starts, or by the caller to cancel a worker that has not started
+         */
+        private final AtomicBoolean claimed = new AtomicBoolean(false);
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        private Worker(Queue<K> queue, Request<K> request, Map<K, String> failures) {
+            this.queue = queue;
+            this.request = request;
+            this.failures = failures;
+        }
+
+        @Override
+        public void run() {
+            if (!claimed.compareAndSet(false, true)) {
+                return;
+            }
+
+            try {
+                K key;
+                while ((key = queue.poll()) != null) {
+                    try {
+                        request.send(key);
+                    } catch (Exception e) {
+                        failures.put(key, getMessage(e));
+                    }
+                }
+            } finally {
+                done.countDown();
+            }
+        }
+
+        /**
+         * Wait until worker is done, a worker that has not started yet is cancelled instead
+         */
+        private void await() throws InterruptedException {
+            if (claimed.compareAndSet(false, true)) {
+                return;
+            }
+            done.await();
+        }
+    }
+}
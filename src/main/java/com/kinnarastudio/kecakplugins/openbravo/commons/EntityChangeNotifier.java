@@ -0,0 +1,51 @@
+package com.kinnarastudio.kecakplugins.openbravo.commons;
+
+import org.joget.commons.util.LogUtil;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.function.BiConsumer;
+
+/**
+ * Notify caches when records of an Openbravo entity are created, updated, deleted or (de)activated
+ */
+public final class EntityChangeNotifier {
+    private final static Set<BiConsumer<String, String>> listeners = new CopyOnWriteArraySet<>();
+
+    private EntityChangeNotifier() {
+    }
+
+    /**
+     * @param listener accepts normalized base URL and table entity
+     */
+    public static void addListener(@Nonnull BiConsumer<String, String> listener) {
+        listeners.add(listener);
+    }
+
+    public static void removeListener(@Nonnull BiConsumer<String, String> listener) {
+        listeners.remove(listener);
+    }
+
+    public static void notifyChange(@Nullable String baseUrl, @Nullable String tableEntity) {
+        final String normalizedBaseUrl = normalizeBaseUrl(baseUrl);
+        final String entity = tableEntity == null ? "" : tableEntity;
+        for (BiConsumer<String, String> listener : listeners) {
+            try {
+                listener.accept(normalizedBaseUrl, entity);
+            } catch (Exception e) {
+                LogUtil.error(EntityChangeNotifier.class.getName(), e, "Error notifying change of [" + entity + "]");
+            }
+        }
+    }
+
+    /**
+     * @param baseUrl
+     * @return trimmed base URL without trailing slashes
+     */
+    @Nonnull
+    public static String normalizeBaseUrl(@Nullable String baseUrl) {
+        return baseUrl == null ? "" : baseUrl.trim().replaceAll("/+$", "");
+    }
+}
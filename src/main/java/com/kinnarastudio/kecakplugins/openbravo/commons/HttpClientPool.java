@@ -0,0 +1,141 @@
+package com.kinnarastudio.kecakplugins.openbravo.commons;
+
+import com.kinnarastudio.obclient.exceptions.OpenbravoClientException;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.NoopHostnameVerifier;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.ssl.SSLContextBuilder;
+import org.joget.commons.util.LogUtil;
+
+import javax.annotation.Nonnull;
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.security.KeyManagementException;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shared pooled HTTP clients for all Openbravo plugins in this bundle.
+ * <p>
+ * One client is lazily created per (base URL, trust mode) and kept alive until
+ * {@link #shutdown()} is called by the bundle activator. Pool sizes can be tuned
+ * using system properties :
+ * <ul>
+ *     <li>{@value #PROPERTY_MAX_TOTAL} : max connections per client, default {@value #DEFAULT_MAX_TOTAL}</li>
+ *     <li>{@value #PROPERTY_MAX_PER_ROUTE} : max connections per route, default {@value #DEFAULT_MAX_PER_ROUTE}</li>
+ *     <li>{@value #PROPERTY_KEEP_ALIVE} : keep-alive in seconds when server does not send one, default {@value #DEFAULT_KEEP_ALIVE}</li>
+ *     <li>{@value #PROPERTY_IDLE_TIMEOUT} : idle connection eviction in seconds, default {@value #DEFAULT_IDLE_TIMEOUT}</li>
+ * </ul>
+ */
+public final class HttpClientPool {
+    public final static String PROPERTY_MAX_TOTAL = "openbravo.http.maxTotal";
+    public final static String PROPERTY_MAX_PER_ROUTE = "openbravo.http.maxPerRoute";
+    public final static String PROPERTY_KEEP_ALIVE = "openbravo.http.keepAlive";
+    public final static String PROPERTY_IDLE_TIMEOUT = "openbravo.http.idleTimeout";
+
+    public final static int DEFAULT_MAX_TOTAL = 100;
+    public final static int DEFAULT_MAX_PER_ROUTE = 20;
+    public final static int DEFAULT_KEEP_ALIVE = 30;
+    public final static int DEFAULT_IDLE_TIMEOUT = 60;
+
+    private final static Map<String, CloseableHttpClient> clients = new ConcurrentHashMap<>();
+
+    private HttpClientPool() {
+    }
+
+    /**
+     * Get shared HTTP client
+     *
+     * @param baseUrl           Openbravo base URL, used as pool key
+     * @param ignoreCertificate trust all certificates and host names
+     * @return pooled client, never close it
+     * @throws OpenbravoClientException when SSL context cannot be built
+     */
+    @Nonnull
+    public static CloseableHttpClient getHttpClient(@Nonnull String baseUrl, boolean ignoreCertificate) throws OpenbravoClientException {
+        final String key = getKey(baseUrl, ignoreCertificate);
+        final CloseableHttpClient client = clients.get(key);
+        if (client != null) {
+            return client;
+        }
+
+        // same lock as shutdown, so no client is created while the pool is being closed
+        synchronized (HttpClientPool.class) {
+            final CloseableHttpClient current = clients.get(key);
+            if (current != null) {
+                return current;
+            }
+
+            try {
+                final CloseableHttpClient newClient = createHttpClient(ignoreCertificate);
+                clients.put(key, newClient);
+                return newClient;
+            } catch (NoSuchAlgorithmException | KeyStoreException | KeyManagementException e) {
+                throw new OpenbravoClientException(e);
+            }
+        }
+    }
+
+    /**
+     * Close all clients, called when bundle is stopped
+     */
+    public static synchronized void shutdown() {
+        clients.forEach((key, client) -> {
+            try {
+                client.close();
+            } catch (IOException e) {
+                LogUtil.error(HttpClientPool.class.getName(), e, "Error closing HTTP client [" + key + "]");
+            }
+        });
+        clients.clear();
+    }
+
+    protected static CloseableHttpClient createHttpClient(boolean ignoreCertificate) throws NoSuchAlgorithmException, KeyStoreException, KeyManagementException {
+        final SSLConnectionSocketFactory sslSocketFactory;
+        if (ignoreCertificate) {
+            final SSLContext sslContext = new SSLContextBuilder()
+                    .loadTrustMaterial(null, (certificate, authType) -> true).build();
+            sslSocketFactory = new SSLConnectionSocketFactory(sslContext, NoopHostnameVerifier.INSTANCE);
+        } else {
+            sslSocketFactory = SSLConnectionSocketFactory.getSocketFactory();
+        }
+
+        final Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .register("https", sslSocketFactory)
+                .build();
+
+        final PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(registry);
+        connectionManager.setMaxTotal(PropertyParser.getSystemInt(PROPERTY_MAX_TOTAL, 1, DEFAULT_MAX_TOTAL));
+        connectionManager.setDefaultMaxPerRoute(PropertyParser.getSystemInt(PROPERTY_MAX_PER_ROUTE, 1, DEFAULT_MAX_PER_ROUTE));
+        connectionManager.setValidateAfterInactivity(2000);
+
+        final long keepAlive = TimeUnit.SECONDS.toMillis(PropertyParser.getSystemInt(PROPERTY_KEEP_ALIVE, 0, DEFAULT_KEEP_ALIVE));
+        final ConnectionKeepAliveStrategy keepAliveStrategy = (response, context) -> {
+            final long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            return duration > 0 ? duration : keepAlive;
+        };
+
+        return HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setKeepAliveStrategy(keepAliveStrategy)
+                .evictExpiredConnections()
+                .evictIdleConnections(PropertyParser.getSystemInt(PROPERTY_IDLE_TIMEOUT, 1, DEFAULT_IDLE_TIMEOUT), TimeUnit.SECONDS)
+                .build();
+    }
+
+    protected static String getKey(@Nonnull String baseUrl, boolean ignoreCertificate) {
+        return (ignoreCertificate ? "insecure:" : "secure:") + EntityChangeNotifier.normalizeBaseUrl(baseUrl);
+    }
+}
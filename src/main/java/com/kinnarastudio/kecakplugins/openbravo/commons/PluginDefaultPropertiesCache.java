@@ -0,0 +1,122 @@
+package com.kinnarastudio.kecakplugins.openbravo.commons;
+
+import org.joget.apps.app.dao.PluginDefaultPropertiesDao;
+import org.joget.apps.app.model.AppDefinition;
+import org.joget.apps.app.model.PluginDefaultProperties;
+import org.joget.apps.app.service.AppUtil;
+import org.joget.plugin.property.service.PropertyUtil;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plugin default properties per (app ID, app version, app modified date, plugin class).
+ * <p>
+ * There is no hook on saving plugin default properties. When the save also updates the modified date of the app,
+ * the next call gets a new cache key; otherwise saved properties are picked up once the entry expires, so
+ * properties may be stale for up to {@value #PROPERTY_TTL} seconds (default {@value #DEFAULT_TTL}), 0 disables the cache.
+ * JSON is parsed once. Values containing hash variables are processed on every call since the result may depend
+ * on the current user, other values are shared.
+ */
+public final class PluginDefaultPropertiesCache {
+    public final static String PROPERTY_TTL = "openbravo.cache.pluginDefaults.ttl";
+    public final static long DEFAULT_TTL = 60;
+
+    private final static TtlCache<List<Object>, DefaultProperties> cache = new TtlCache<>(1000, properties -> 1);
+
+    private PluginDefaultPropertiesCache() {
+    }
+
+    /**
+     * @param className plugin class name
+     * @return default properties of current app, empty when not configured
+     */
+    @Nonnull
+    public static Map<String, Object> getDefaultProperties(@Nonnull String className) {
+        final AppDefinition appDefinition = AppUtil.getCurrentAppDefinition();
+        if (appDefinition == null) {
+            return load(className, null).getProperties();
+        }
+
+        final List<Object> key = Arrays.asList(appDefinition.getAppId(), appDefinition.getVersion(), appDefinition.getDateModified(), className);
+        DefaultProperties defaultProperties = cache.get(key);
+        if (defaultProperties == null) {
+            defaultProperties = load(className, appDefinition);
+
+            final long ttl = TimeUnit.SECONDS.toMillis(PropertyParser.getSystemLong(PROPERTY_TTL, 0, DEFAULT_TTL));
+            if (ttl > 0) {
+                cache.put(key, defaultProperties, ttl);
+            }
+        }
+
+        return defaultProperties.getProperties();
+    }
+
+    public static void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    private static DefaultProperties load(String className, @Nullable AppDefinition appDefinition) {
+        final PluginDefaultPropertiesDao pluginDefaultPropertiesDao = (PluginDefaultPropertiesDao) AppUtil.getApplicationContext().getBean("pluginDefaultPropertiesDao");
+        final String json = Optional.ofNullable(pluginDefaultPropertiesDao.loadById(className, appDefinition))
+                .map(PluginDefaultProperties::getPluginProperties)
+                .orElse(null);
+        return new DefaultProperties(json);
+    }
+
+    private static class DefaultProperties {
+        private final Map<String, Object> properties;
+
+        /**
+         * Some value contains a hash variable
+         */
+        private final boolean hasHashVariable;
+
+        private DefaultProperties(@Nullable String json) {
+            if (json == null) {
+                properties = Collections.emptyMap();
+                hasHashVariable = false;
+            } else {
+                properties = Collections.unmodifiableMap(PropertyUtil.getPropertiesValueFromJson(json));
+                hasHashVariable = json.contains("#");
+            }
+        }
+
+        private Map<String, Object> getProperties() {
+            if (!hasHashVariable) {
+                return properties;
+            }
+
+            final Map<String, Object> processed = new HashMap<>(properties.size() * 2);
+            properties.forEach((name, value) -> processed.put(name, processHashVariable(value)));
+            return processed;
+        }
+
+        /**
+         * Process hash variables of string values, including values of grids and nested plugin properties
+         */
+        private static Object processHashVariable(Object value) {
+            if (value instanceof String) {
+                final String string = (String) value;
+                return string.contains("#") ? AppUtil.processHashVariable(string, null, null, null) : string;
+            } else if (value instanceof Map) {
+                final Map<Object, Object> processed = new HashMap<>();
+                ((Map<?, ?>) value).forEach((k, v) -> processed.put(k, processHashVariable(v)));
+                return processed;
+            } else if (value instanceof Object[]) {
+                return Arrays.stream((Object[]) value)
+                        .map(DefaultProperties::processHashVariable)
+                        .toArray(Object[]::new);
+            }
+
+            return value;
+        }
+    }
+}
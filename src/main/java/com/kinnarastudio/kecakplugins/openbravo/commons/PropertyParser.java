@@ -0,0 +1,91 @@
+package com.kinnarastudio.kecakplugins.openbravo.commons;
+
+import org.joget.commons.util.LogUtil;
+import org.joget.plugin.property.model.PropertyEditable;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parse numeric plugin properties and system properties used for tuning.
+ * <p>
+ * Empty or invalid values fall back to the default, values below the minimum are raised to the minimum.
+ */
+public interface PropertyParser extends PropertyEditable {
+
+    /**
+     * @param name         plugin property name
+     * @param min          minimum value
+     * @param defaultValue value when property is empty or not a number
+     * @return property value
+     */
+    default int getPropertyInt(String name, int min, int defaultValue) {
+        return (int) parse(getPropertyString(name), min, defaultValue);
+    }
+
+    /**
+     * @param name         plugin property name
+     * @param min          minimum value
+     * @param defaultValue value when property is empty or not a number
+     * @return property value
+     */
+    default long getPropertyLong(String name, long min, long defaultValue) {
+        return parse(getPropertyString(name), min, defaultValue);
+    }
+
+    /**
+     * @return property "cacheTtl" in milliseconds, 0 when cache is disabled
+     */
+    default long getCacheTtl() {
+        return TimeUnit.SECONDS.toMillis(getPropertyLong("cacheTtl", 0, 0));
+    }
+
+    /**
+     * @return property "batchSize", records sent in one request
+     */
+    default int getBatchSize() {
+        return getPropertyInt("batchSize", 1, 1);
+    }
+
+    /**
+     * @param name         system property name
+     * @param min          minimum value
+     * @param defaultValue value when property is not set or not a number
+     * @return system property value
+     */
+    static int getSystemInt(String name, int min, int defaultValue) {
+        return (int) getSystemLong(name, min, defaultValue);
+    }
+
+    /**
+     * @param name         system property name
+     * @param min          minimum value
+     * @param defaultValue value when property is not set or not a number
+     * @return system property value
+     */
+    static long getSystemLong(String name, long min, long defaultValue) {
+        final String value = System.getProperty(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+
+        try {
+            return Math.max(min, Long.parseLong(value.trim()));
+        } catch (NumberFormatException e) {
+            LogUtil.warn(PropertyParser.class.getName(), "Invalid value [" + value + "] for [" + name + "], using default [" + defaultValue + "]");
+            return defaultValue;
+        }
+    }
+
+    private static long parse(@Nullable String value, long min, long defaultValue) {
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+
+        try {
+            return Math.max(min, Long.parseLong(value.trim()));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.kinnarastudio.kecakplugins.openbravo.commons;
+
+import org.joget.commons.util.LogUtil;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+
+/**
+ * Cache that reloads entries in background before they expire.
+ * <p>
+ * Once an entry is older than {@code refreshFactor} of its time-to-live, the cached value is still returned
+ * and a reload is submitted to {@link BackgroundExecutor}. Expired entries are loaded synchronously.
+ * Loaders run on other threads, they must not depend on Kecak thread-local context.
+ *
+ * @param <K> key
+ * @param <V> value
+ */
+public class RefreshAheadCache<K, V> {
+    private final TtlCache<K, Loaded<V>> cache;
+    private final double refreshFactor;
+    private final Set<K> refreshing = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Running loads by key, guarded by the cache lock. Invalidation marks the loads of the matching keys as stale
+     * so that they do not put back invalidated value, loads of other keys are kept
+     */
+    private final Map<K, List<AtomicBoolean>> loads = new HashMap<>();
+
+    /**
+     * @param maxSize       maximum number of entries
+     * @param refreshFactor portion of time-to-live after which entry is refreshed, between 0 and 1
+     */
+    public RefreshAheadCache(long maxSize, double refreshFactor) {
+        this.cache = new TtlCache<>(maxSize, loaded -> 1);
+        this.refreshFactor = refreshFactor;
+    }
+
+    /**
+     * @param key
+     * @param ttl    time-to-live in milliseconds, loader is always called when 0 or less
+     * @param loader
+     * @return cached or loaded value
+     * @throws Exception thrown by loader
+     */
+    public V get(K key, long ttl, Callable<V> loader) throws Exception {
+        if (ttl <= 0) {
+            return loader.call();
+        }
+
+        final Loaded<V> loaded = cache.get(key);
+        if (loaded == null) {
+            final AtomicBoolean stale = startLoad(key);
+            try {
+                final V value = loader.call();
+                put(key, value, ttl, stale);
+                return value;
+            } finally {
+                endLoad(key, stale);
+            }
+        }
+
+        if (System.currentTimeMillis() - loaded.loadedAt >= ttl * refreshFactor && refreshing.add(key)) {
+            final AtomicBoolean stale = startLoad(key);
+            try {
+                BackgroundExecutor.getInstance().submit(() -> {
+                    try {
+                        put(key, loader.call(), ttl, stale);
+                    } catch (Exception e) {
+                        LogUtil.error(getClass().getName(), e, "Error refreshing [" + key + "], keeping cached value");
+                    } finally {
+                        endLoad(key, stale);
+                        refreshing.remove(key);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                endLoad(key, stale);
+                refreshing.remove(key);
+            }
+        }
+
+        return loaded.value;
+    }
+
+    public void invalidateIf(Predicate<K> predicate) {
+        synchronized (cache) {
+            loads.forEach((key, stales) -> {
+                if (predicate.test(key)) {
+                    stales.forEach(stale -> stale.set(true));
+                }
+            });
+            cache.invalidateIf(predicate);
+        }
+    }
+
+    public void invalidateAll() {
+        synchronized (cache) {
+            loads.values().forEach(stales -> stales.forEach(stale -> stale.set(true)));
+            cache.invalidateAll();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return cache.toString();
+    }
+
+    protected void put(K key, V value, long ttl, AtomicBoolean stale) {
+        synchronized (cache) {
+            if (!stale.get()) {
+                cache.put(key, new Loaded<>(value), ttl);
+            }
+        }
+    }
+
+    private AtomicBoolean startLoad(K key) {
+        final AtomicBoolean stale = new AtomicBoolean();
+        synchronized (cache) {
+            loads.computeIfAbsent(key, k -> new ArrayList<>(1)).add(stale);
+        }
+        return stale;
+    }
+
+    private void endLoad(K key, AtomicBoolean stale) {
+        synchronized (cache) {
+            final List<AtomicBoolean> stales = loads.get(key);
+            if (stales != null) {
+                stales.remove(stale);
+                if (stales.isEmpty()) {
+                    loads.remove(key);
+                }
+            }
+        }
+    }
+
+    private static class Loaded<V> {
+        private final V value;
+        private final long loadedAt = System.currentTimeMillis();
+
+        private Loaded(V value) {
+            this.value = value;
+        }
+    }
+}
@@ -6,20 +6,17 @@ import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import com.google.gson.stream.JsonReader;
 import com.kinnarastudio.commons.jsonstream.JSONCollectors;
+import com.kinnarastudio.kecakplugins.openbravo.service.OpenbravoService;
 import com.kinnarastudio.obclient.exceptions.OpenbravoClientException;
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.StatusLine;
-import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.*;
-import org.apache.http.conn.ssl.NoopHostnameVerifier;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.entity.mime.MultipartEntityBuilder;
-import org.apache.http.impl.client.HttpClientBuilder;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.ssl.SSLContextBuilder;
+import org.apache.http.impl.client.CloseableHttpClient;
 import org.joget.apps.app.dao.DatalistDefinitionDao;
 import org.joget.apps.app.dao.FormDefinitionDao;
 import org.joget.apps.app.model.AppDefinition;
@@ -45,7 +42,6 @@ import org.xml.sax.SAXException;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
-import javax.net.ssl.SSLContext;
 import javax.servlet.http.HttpServletResponse;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
@@ -54,9 +50,6 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.URLEncoder;
-import java.security.KeyManagementException;
-import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
 import java.util.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -69,7 +62,12 @@ import static org.apache.http.entity.mime.HttpMultipartMode.BROWSER_COMPATIBLE;
 /**
  * @author aristo
  */
-public interface RestMixin extends PropertyEditable, Unclutter {
+public interface RestMixin extends PropertyEditable, PropertyParser, Unclutter {
+    int DEFAULT_WORKERS = 4;
+    int MAX_REPORTED_FAILURES = 10;
+    int LOOKUP_CHUNK_SIZE = 100;
+    Pattern OPENBRAVO_ID_PATTERN = Pattern.compile("[0-9A-Fa-f]{32}");
+
     Map<String, Form> formCache = new HashMap<>();
 
     /**
@@ -293,26 +291,16 @@ public interface RestMixin extends PropertyEditable, Unclutter {
     }
 
     /**
-     * Get HTTP Client
+     * Get shared pooled HTTP Client for base URL, do not close the client.
+     * Close the response instead to release the connection back to the pool.
      *
+     * @param baseUrl
      * @param ignoreCertificate
      * @return
      * @throws OpenbravoClientException
      */
-    default HttpClient getHttpClient(boolean ignoreCertificate) throws OpenbravoClientException {
-        try {
-            if (ignoreCertificate) {
-                SSLContext sslContext = new SSLContextBuilder()
-                        .loadTrustMaterial(null, (certificate, authType) -> true).build();
-                return HttpClients.custom().setSSLContext(sslContext)
-                        .setSSLHostnameVerifier(new NoopHostnameVerifier())
-                        .build();
-            } else {
-                return HttpClientBuilder.create().build();
-            }
-        } catch (NoSuchAlgorithmException | KeyStoreException | KeyManagementException e) {
-            throw new OpenbravoClientException(e);
-        }
+    default CloseableHttpClient getHttpClient(@Nonnull String baseUrl, boolean ignoreCertificate) throws OpenbravoClientException {
+        return HttpClientPool.getHttpClient(baseUrl, ignoreCertificate);
     }
 
     default HttpUriRequest getHttpRequest(String url, String method, Map<String, String> headers) throws OpenbravoClientException {
@@ -627,6 +615,165 @@ public interface RestMixin extends PropertyEditable, Unclutter {
         }
     }
 
+    /**
+     * Execute single record request and verify Openbravo response status
+     *
+     * @param client  pooled client
+     * @param request request
+     * @throws OpenbravoClientException when request fails or Openbravo responds with an error
+     */
+    default void executeRecordRequest(@Nonnull CloseableHttpClient client, @Nonnull HttpUriRequest request) throws OpenbravoClientException {
+        try (CloseableHttpResponse response = client.execute(request)) {
+            final int statusCode = getResponseStatus(response);
+            if (getStatusGroupCode(statusCode) != 200) {
+                throw new OpenbravoClientException("Response code [" + statusCode + "] is not 200 (Success)");
+            } else if (statusCode != 200) {
+                LogUtil.warn(getClassName(), "Response code [" + statusCode + "] is considered as success");
+            }
+
+            if (!isJsonResponse(response)) {
+                throw new OpenbravoClientException("Content type is not JSON");
+            }
+
+            try (BufferedReader br = new BufferedReader(new InputStreamReader(response.getEntity().getContent()))) {
+                final JSONObject jsonResponseBody = new JSONObject(br.lines().collect(Collectors.joining())).getJSONObject("response");
+                final int status = jsonResponseBody.getInt("status");
+                if (status != 0) {
+                    throw new OpenbravoClientException(jsonResponseBody.getJSONObject("error").getString("message"));
+                }
+            }
+        } catch (IOException | JSONException e) {
+            throw new OpenbravoClientException(e);
+        }
+    }
+
+    /**
+     * Load current active state of the records, using one query for every {@value #LOOKUP_CHUNK_SIZE} keys
+     * instead of loading the whole datalist. Keys which are not 32 hexadecimal characters Openbravo IDs are skipped.
+     *
+     * @return active state by record ID, records not found are not included
+     */
+    default Map<String, Boolean> getActiveStates(String baseUrl, String tableEntity, String username, String password, List<String> keys) throws OpenbravoClientException {
+        final OpenbravoService obService = OpenbravoService.builder()
+                .setIgnoreCertificateError(isIgnoreCertificateError())
+                .setNoFilterActive(true)
+                .build();
+
+        // keys come from the request, only Openbravo IDs are put into the query
+        final List<String> ids = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            if (key != null && OPENBRAVO_ID_PATTERN.matcher(key).matches()) {
+                ids.add(key);
+            } else {
+                LogUtil.warn(getClassName(), "Record [" + key + "] : not an Openbravo ID, active state is not loaded");
+            }
+        }
+
+        final Map<String, Boolean> activeStates = new HashMap<>(ids.size() * 2);
+        for (int start = 0; start < ids.size(); start += LOOKUP_CHUNK_SIZE) {
+            final List<String> chunk = ids.subList(start, Math.min(ids.size(), start + LOOKUP_CHUNK_SIZE));
+            final String condition = chunk.stream().map(id -> "'" + id + "'").collect(Collectors.joining(",", "id IN (", ")"));
+            obService.get(baseUrl, tableEntity, username, password, new String[]{"id", "active"}, condition, null, null, null, 0, chunk.size(),
+                    record -> activeStates.put(String.valueOf(record.get("id")), "true".equalsIgnoreCase(String.valueOf(record.get("active")))));
+        }
+        return activeStates;
+    }
+
+    default FormRow getActivationRow(String rowKey, boolean active) {
+        final FormRow row = new FormRow();
+        row.setId(rowKey);
+        row.setProperty("active", String.valueOf(active));
+        return row;
+    }
+
+    /**
+     * @param total    number of records
+     * @param failures failure message per record
+     * @return message shown to the user, listing the first failed records
+     */
+    default String getFailureMessage(int total, Map<String, String> failures) {
+        final String details = failures.entrySet().stream()
+                .limit(MAX_REPORTED_FAILURES)
+                .map(e -> e.getKey() + " : " + e.getValue())
+                .collect(Collectors.joining("\n"));
+        final String more = failures.size() > MAX_REPORTED_FAILURES ? "\n(" + (failures.size() - MAX_REPORTED_FAILURES) + " more)" : "";
+        return failures.size() + " of " + total + " records failed\n" + details + more;
+    }
+
+    default int getWorkers() {
+        return getPropertyInt("workers", 1, DEFAULT_WORKERS);
+    }
+
+    /**
+     * Send activation request of every record in parallel. In "toggle" mode the current state is loaded first,
+     * records which are not found are reported as failed and not sent. Requests are built on the calling thread
+     * since hash variables need the Kecak context.
+     *
+     * @param activationMode "activate", "deactivate" or "toggle"
+     * @param requestBuilder request of a record from its activation row
+     * @return message shown to the user, NULL when every record succeeded
+     */
+    @Nullable
+    default String executeActivationRequests(String baseUrl, String tableEntity, String username, String password, List<String> keys, String activationMode, ActivationRequestBuilder requestBuilder) {
+        final Map<String, String> failures = new HashMap<>();
+        try {
+            final CloseableHttpClient client = getHttpClient(baseUrl, isIgnoreCertificateError());
+
+            final Map<String, FormRow> rows = new LinkedHashMap<>();
+            if ("toggle".equalsIgnoreCase(activationMode)) {
+                final Map<String, Boolean> activeStates = getActiveStates(baseUrl, tableEntity, username, password, keys);
+                for (String rowKey : keys) {
+                    final Boolean isCurrentlyActive = activeStates.get(rowKey);
+                    if (isCurrentlyActive == null) {
+                        failures.put(rowKey, "Record not found");
+                    } else {
+                        rows.put(rowKey, getActivationRow(rowKey, !isCurrentlyActive));
+                    }
+                }
+            } else {
+                final boolean active = "activate".equalsIgnoreCase(activationMode);
+                for (String rowKey : keys) {
+                    rows.put(rowKey, getActivationRow(rowKey, active));
+                }
+            }
+
+            final Map<String, HttpUriRequest> requests = new LinkedHashMap<>();
+            for (Map.Entry<String, FormRow> entry : rows.entrySet()) {
+                requests.put(entry.getKey(), requestBuilder.build(entry.getKey(), entry.getValue()));
+            }
+
+            failures.putAll(BulkRequestExecutor.execute(requests.keySet(), getWorkers(),
+                    rowKey -> executeRecordRequest(client, requests.get(rowKey))));
+        } catch (OpenbravoClientException e) {
+            LogUtil.error(getClassName(), e, e.getMessage());
+            return e.getMessage();
+        } catch (InterruptedException e) {
+            LogUtil.error(getClassName(), e, e.getMessage());
+            Thread.currentThread().interrupt();
+            return "Interrupted, some of the " + keys.size() + " records may not have been processed";
+        } finally {
+            EntityChangeNotifier.notifyChange(baseUrl, tableEntity);
+        }
+
+        if (failures.isEmpty()) {
+            return null;
+        }
+
+        final Map<String, String> orderedFailures = new LinkedHashMap<>();
+        for (String rowKey : keys) {
+            Optional.ofNullable(failures.get(rowKey)).ifPresent(message -> {
+                LogUtil.warn(getClassName(), "Record [" + rowKey + "] : " + message);
+                orderedFailures.put(rowKey, message);
+            });
+        }
+        return getFailureMessage(keys.size(), orderedFailures);
+    }
+
+    @FunctionalInterface
+    interface ActivationRequestBuilder {
+        HttpUriRequest build(String rowKey, FormRow row) throws OpenbravoClientException;
+    }
+
 //    /**
 //     * Set HTTP entity
 //     *
@@ -0,0 +1,154 @@
+package com.kinnarastudio.kecakplugins.openbravo.commons;
+
+import javax.annotation.Nullable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+
+/**
+ * In-process cache with per entry time-to-live and bounded total weight.
+ * <p>
+ * When total weight exceeds the maximum, least recently used entries are evicted first.
+ * Hit, miss and eviction counters are kept for monitoring. All operations are synchronized.
+ *
+ * @param <K> key
+ * @param <V> value
+ */
+public class TtlCache<K, V> {
+    private final long maxWeight;
+    private final ToLongFunction<V> weigher;
+    private final LinkedHashMap<K, Entry<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long weight = 0;
+    private long hitCount = 0;
+    private long missCount = 0;
+    private long evictionCount = 0;
+
+    /**
+     * @param maxWeight maximum total weight of all entries
+     * @param weigher   weight of a value, at least 1
+     */
+    public TtlCache(long maxWeight, ToLongFunction<V> weigher) {
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+    }
+
+    /**
+     * @param key
+     * @return cached value, NULL when not found or already expired
+     */
+    @Nullable
+    public synchronized V get(K key) {
+        final Entry<V> entry = entries.get(key);
+        if (entry == null) {
+            missCount++;
+            return null;
+        }
+
+        if (entry.isExpired()) {
+            remove(key);
+            missCount++;
+            return null;
+        }
+
+        hitCount++;
+        return entry.value;
+    }
+
+    /**
+     * @param key
+     * @param value
+     * @param ttl   time-to-live in milliseconds, value is not cached when 0 or less
+     */
+    public synchronized void put(K key, V value, long ttl) {
+        if (ttl <= 0) {
+            return;
+        }
+
+        final long valueWeight = Math.max(1, weigher.applyAsLong(value));
+        if (valueWeight > maxWeight) {
+            return;
+        }
+
+        remove(key);
+        entries.put(key, new Entry<>(value, valueWeight, System.currentTimeMillis() + ttl));
+        weight += valueWeight;
+
+        final Iterator<Entry<V>> iterator = entries.values().iterator();
+        while (weight > maxWeight && iterator.hasNext()) {
+            weight -= iterator.next().weight;
+            iterator.remove();
+            evictionCount++;
+        }
+    }
+
+    public synchronized void invalidate(K key) {
+        remove(key);
+    }
+
+    public synchronized void invalidateIf(Predicate<K> predicate) {
+        final Iterator<Map.Entry<K, Entry<V>>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<K, Entry<V>> entry = iterator.next();
+            if (predicate.test(entry.getKey())) {
+                weight -= entry.getValue().weight;
+                iterator.remove();
+            }
+        }
+    }
+
+    public synchronized void invalidateAll() {
+        entries.clear();
+        weight = 0;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "size [" + entries.size() + "] weight [" + weight + "/" + maxWeight + "] hit [" + hitCount + "] miss [" + missCount + "] eviction [" + evictionCount + "]";
+    }
+
+    private void remove(K key) {
+        final Entry<V> entry = entries.remove(key);
+        if (entry != null) {
+            weight -= entry.weight;
+        }
+    }
+
+    private static class Entry<V> {
+        private final V value;
+        private final long weight;
+        private final long expiredAt;
+
+        private Entry(V value, long weight, long expiredAt) {
+            this.value = value;
+            this.weight = weight;
+            this.expiredAt = expiredAt;
+        }
+
+        private boolean isExpired() {
+            return System.currentTimeMillis() >= expiredAt;
+        }
+    }
+}
@@ -1,9 +1,13 @@
 package com.kinnarastudio.kecakplugins.openbravo.datalist;
 
+import com.kinnarastudio.kecakplugins.openbravo.commons.PropertyParser;
+import com.kinnarastudio.kecakplugins.openbravo.commons.BackgroundExecutor;
+import com.kinnarastudio.kecakplugins.openbravo.commons.EntityChangeNotifier;
 import com.kinnarastudio.kecakplugins.openbravo.commons.RestMixin;
+import com.kinnarastudio.kecakplugins.openbravo.commons.TtlCache;
 import com.kinnarastudio.kecakplugins.openbravo.model.OpenbravoDataListQueryObject;
+import com.kinnarastudio.kecakplugins.openbravo.service.OpenbravoService;
 import com.kinnarastudio.obclient.exceptions.OpenbravoClientException;
-import com.kinnarastudio.obclient.service.OpenbravoService;
 import org.joget.apps.app.service.AppUtil;
 import org.joget.apps.datalist.model.*;
 import org.joget.commons.util.LogUtil;
@@ -11,6 +15,9 @@ import org.joget.plugin.base.PluginManager;
 
 import javax.annotation.Nullable;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -20,15 +27,47 @@ import java.util.stream.Stream;
  * Openbravo DataList Binder
  */
 public class OpenbravoDataListBinder extends DataListBinderDefault implements RestMixin {
+    public final static String PROPERTY_CACHE_MAX_WEIGHT = "openbravo.cache.dataList.maxWeight";
+    public final static long DEFAULT_CACHE_MAX_WEIGHT = 10000;
+    public final static String PROPERTY_COLUMN_CACHE_TTL = "openbravo.cache.columns.ttl";
+    public final static long DEFAULT_COLUMN_CACHE_TTL = 3600;
+
+    /**
+     * Cached pages shared by all datalists, weighted by number of rows
+     */
+    private final static TtlCache<List<Object>, DataListCollection<Map<String, String>>> dataCache = new TtlCache<>(PropertyParser.getSystemLong(PROPERTY_CACHE_MAX_WEIGHT, 0, DEFAULT_CACHE_MAX_WEIGHT), Collection::size);
+
+    /**
+     * Incremented on entity change, so that a fetch started before the change does not put back a stale page
+     */
+    private final static AtomicLong dataGeneration = new AtomicLong();
+
+    /**
+     * Column names per (base URL, entity)
+     */
+    private final static TtlCache<List<String>, String[]> columnCache = new TtlCache<>(1000, columns -> 1);
+
+    /**
+     * Pending count per (base URL, entity, username, active filter, where condition), removed once picked up
+     * by {@link #getDataTotalRowCount(DataList, Map, DataListFilterQueryObject[])}
+     */
+    private final Map<List<Object>, Future<Integer>> countRequests = new ConcurrentHashMap<>();
+
+    /**
+     * Count is prefetched for the first page request only, which is the one rendered with the total
+     */
+    private final AtomicBoolean countPrefetched = new AtomicBoolean();
+
+    static {
+        EntityChangeNotifier.addListener((baseUrl, tableEntity) -> {
+            dataGeneration.incrementAndGet();
+            dataCache.invalidateIf(key -> baseUrl.equals(key.get(0)) && tableEntity.equals(key.get(1)));
+        });
+    }
+
     @Override
     public DataListColumn[] getColumns() {
-        return Optional.ofNullable(getData(null, null, null, null, null, null, 1))
-                .stream()
-                .flatMap(Collection::stream)
-                .findFirst()
-                .map(Map::keySet)
-                .stream()
-                .flatMap(Collection::stream)
+        return Arrays.stream(getColumnNames())
                 .map(s -> new DataListColumn() {{
                     setName(s);
                     setLabel(s);
@@ -36,6 +75,46 @@ public class OpenbravoDataListBinder extends DataListBinderDefault implements Re
                 .toArray(DataListColumn[]::new);
     }
 
+    /**
+     * Column names of the entity, resolved once per (base URL, entity) from a single record
+     * regardless of the active flag and custom where condition. Entities without any record are not cached.
+     *
+     * @return
+     */
+    protected String[] getColumnNames() {
+        final String baseUrl = getBaseUrl();
+        final String tableEntity = getTableEntity();
+        final List<String> cacheKey = Arrays.asList(EntityChangeNotifier.normalizeBaseUrl(baseUrl), tableEntity);
+
+        final String[] cached = columnCache.get(cacheKey);
+        if (cached != null) {
+            return cached;
+        }
+
+        final OpenbravoService obService = OpenbravoService.builder()
+                .setIgnoreCertificateError(isIgnoreCertificateError())
+                .setNoFilterActive(true)
+                .build();
+
+        try {
+            final String[] columnNames = Arrays.stream(obService.get(baseUrl, tableEntity, getUsername(), getPassword(), null, null, null, null, null, 0, 1))
+                    .findFirst()
+                    .map(Map::keySet)
+                    .stream()
+                    .flatMap(Collection::stream)
+                    .toArray(String[]::new);
+
+            if (columnNames.length > 0) {
+                columnCache.put(cacheKey, columnNames, TimeUnit.SECONDS.toMillis(PropertyParser.getSystemLong(PROPERTY_COLUMN_CACHE_TTL, 0, DEFAULT_COLUMN_CACHE_TTL)));
+            }
+
+            return columnNames;
+        } catch (OpenbravoClientException e) {
+            LogUtil.error(getClassName(), e, "getColumnNames : tableEntity [" + tableEntity + "]");
+            return new String[0];
+        }
+    }
+
     @Override
     public String getPrimaryKeyColumnName() {
         return "id";
@@ -43,31 +122,50 @@ public class OpenbravoDataListBinder extends DataListBinderDefault implements Re
 
     @Override
     public DataListCollection<Map<String, String>> getData(@Nullable DataList dataList, @Nullable Map properties, @Nullable DataListFilterQueryObject[] filterQueryObjects, String sort, @Nullable Boolean desc, @Nullable Integer start, @Nullable Integer rows) {
-        final OpenbravoService obService = OpenbravoService.getInstance();
-        obService.setIgnoreCertificateError(isIgnoreCertificateError());
-        obService.setNoFilterActive(isNoFilterActive());
+        final OpenbravoService obService = OpenbravoService.builder()
+                .setIgnoreCertificateError(isIgnoreCertificateError())
+                .setNoFilterActive(isNoFilterActive())
+                .build();
 
         final String baseUrl = getBaseUrl();
         final String tableEntity = getTableEntity();
         final String username = getUsername();
         final String password = getPassword();
-
-        final String filterWhereCondition = getFilterWhereCondition(filterQueryObjects);
-        final String customWhereCondition = getCustomWhereCondition();
-        final String whereCondition;
-        if (customWhereCondition.isEmpty()) {
-            whereCondition = filterWhereCondition;
-        } else {
-            whereCondition = String.format("(%s) AND (%s)", filterWhereCondition, customWhereCondition);
-        }
+        final String whereCondition = getWhereCondition(filterQueryObjects);
+        final String[] fields = getSelectedProperties(dataList, sort);
 
         try {
             final Integer startRow = start == null ? 0 : start;
+
+            // total is rendered with the first page of the datalist, request it in parallel to be picked up
+            // by getDataTotalRowCount. Unpaged requests (export) and further pages do not show the total
+            if (dataList != null && rows != null && startRow == 0 && countPrefetched.compareAndSet(false, true)) {
+                requestCount(obService, baseUrl, tableEntity, username, password, whereCondition);
+            }
             final Integer endRow = rows == null ? null : (startRow + rows);
-            final DataListCollection<Map<String, String>> result = Arrays.stream(obService.get(baseUrl, tableEntity, username, password, null, whereCondition, null, sort, desc, startRow, endRow))
+
+            final long cacheTtl = getCacheTtl();
+            final List<Object> cacheKey = Arrays.asList(EntityChangeNotifier.normalizeBaseUrl(baseUrl), tableEntity, username, whereCondition, sort, desc, startRow, endRow, isNoFilterActive(), fields == null ? null : Arrays.asList(fields));
+            if (cacheTtl > 0) {
+                final DataListCollection<Map<String, String>> cached = dataCache.get(cacheKey);
+                if (cached != null) {
+                    return copyOf(cached);
+                }
+            }
+
+            final long generation = dataGeneration.get();
+            final DataListCollection<Map<String, String>> result = Arrays.stream(obService.get(baseUrl, tableEntity, username, password, fields, whereCondition, null, sort, desc, startRow, endRow))
                     .map(m -> m.entrySet().stream().collect(Collectors.toUnmodifiableMap(Map.Entry::getKey, e -> String.valueOf(e.getValue()))))
                     .collect(Collectors.toCollection(DataListCollection::new));
 
+            if (cacheTtl > 0) {
+                synchronized (dataCache) {
+                    if (dataGeneration.get() == generation) {
+                        dataCache.put(cacheKey, copyOf(result), cacheTtl);
+                    }
+                }
+            }
+
             return result;
         } catch (OpenbravoClientException e) {
             LogUtil.error(getClassName(), e, "getData : dataList [" + Optional.ofNullable(dataList).map(DataList::getId).orElse("") + "]");
@@ -77,33 +175,53 @@ public class OpenbravoDataListBinder extends DataListBinderDefault implements Re
 
     @Override
     public int getDataTotalRowCount(DataList dataList, Map map, DataListFilterQueryObject[] filterQueryObjects) {
-        final com.kinnarastudio.kecakplugins.openbravo.service.OpenbravoService obService = com.kinnarastudio.kecakplugins.openbravo.service.OpenbravoService.getInstance();
-        obService.setIgnoreCertificateError(isIgnoreCertificateError());
-        obService.setNoFilterActive(isNoFilterActive());
+        final OpenbravoService obService = OpenbravoService.builder()
+                .setIgnoreCertificateError(isIgnoreCertificateError())
+                .setNoFilterActive(isNoFilterActive())
+                .build();
 
         final String baseUrl = getBaseUrl();
         final String tableEntity = getTableEntity();
         final String username = getUsername();
         final String password = getPassword();
-        final String filterWhereCondition = getFilterWhereCondition(filterQueryObjects);
-        final String customWhereCondition = getCustomWhereCondition();
-        final String whereCondition;
-        if (customWhereCondition.isEmpty()) {
-            whereCondition = filterWhereCondition;
-        } else {
-            whereCondition = String.format("(%s) AND (%s)", filterWhereCondition, customWhereCondition);
-        }
+        final String whereCondition = getWhereCondition(filterQueryObjects);
 
+        final List<Object> countKey = getCountKey(baseUrl, tableEntity, username, whereCondition);
+        final Future<Integer> countRequest = requestCount(obService, baseUrl, tableEntity, username, password, whereCondition);
         try {
-            final int result = obService.count(baseUrl, tableEntity, username, password, whereCondition, null);
-            return result;
-        } catch (OpenbravoClientException e) {
-            LogUtil.info(getClassName(), "getDataTotalRowCount : dataList [" + dataList.getId() + "]");
+            return countRequest.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             LogUtil.error(getClassName(), e, e.getMessage());
             return 0;
+        } catch (ExecutionException e) {
+            LogUtil.info(getClassName(), "getDataTotalRowCount : dataList [" + dataList.getId() + "]");
+            LogUtil.error(getClassName(), e.getCause(), e.getCause().getMessage());
+            return 0;
+        } finally {
+            countRequests.remove(countKey, countRequest);
         }
     }
 
+    /**
+     * Send count request in background, a pending request for the same query is reused
+     *
+     * @return pending count
+     */
+    protected Future<Integer> requestCount(OpenbravoService obService, String baseUrl, String tableEntity, String username, String password, String whereCondition) {
+        return countRequests.computeIfAbsent(getCountKey(baseUrl, tableEntity, username, whereCondition), ignored -> CompletableFuture.supplyAsync(() -> {
+            try {
+                return obService.count(baseUrl, tableEntity, username, password, whereCondition, null);
+            } catch (OpenbravoClientException e) {
+                throw new CompletionException(e);
+            }
+        }, BackgroundExecutor.getInstance()));
+    }
+
+    protected List<Object> getCountKey(String baseUrl, String tableEntity, String username, String whereCondition) {
+        return Arrays.asList(EntityChangeNotifier.normalizeBaseUrl(baseUrl), tableEntity, username, isNoFilterActive(), whereCondition);
+    }
+
     @Override
     public String getName() {
         return getLabel();
@@ -219,6 +337,39 @@ public class OpenbravoDataListBinder extends DataListBinderDefault implements Re
                 .collect(Collectors.joining(" ", "1=1 ", ""));
     }
 
+    /**
+     * Properties needed to render the datalist : all columns, primary key and sort column
+     *
+     * @param dataList
+     * @param sort
+     * @return NULL to select all properties when columns are unknown
+     */
+    @Nullable
+    protected String[] getSelectedProperties(@Nullable DataList dataList, @Nullable String sort) {
+        final DataListColumn[] columns = Optional.ofNullable(dataList)
+                .map(DataList::getColumns)
+                .orElse(null);
+
+        if (columns == null || columns.length == 0) {
+            return null;
+        }
+
+        final String[] columnNames = Stream.concat(Arrays.stream(columns).map(DataListColumn::getName), Stream.of(getPrimaryKeyColumnName(), sort))
+                .toArray(String[]::new);
+
+        return OpenbravoService.toSelectedProperties(columnNames);
+    }
+
+    protected String getWhereCondition(DataListFilterQueryObject[] filterQueryObjects) {
+        final String filterWhereCondition = getFilterWhereCondition(filterQueryObjects);
+        final String customWhereCondition = getCustomWhereCondition();
+        if (customWhereCondition.isEmpty()) {
+            return filterWhereCondition;
+        } else {
+            return String.format("(%s) AND (%s)", filterWhereCondition, customWhereCondition);
+        }
+    }
+
     protected String getCondition(DataListFilterQueryObject filterQueryObject) {
         final Pattern p = Pattern.compile("\\?");
         final String[] values = filterQueryObject.getValues();
@@ -238,6 +389,10 @@ public class OpenbravoDataListBinder extends DataListBinderDefault implements Re
         return condition.toString();
     }
 
+    protected DataListCollection<Map<String, String>> copyOf(Collection<Map<String, String>> rows) {
+        return rows.stream().collect(Collectors.toCollection(DataListCollection::new));
+    }
+
     protected String getCustomWhereCondition() {
         return getPropertyString("customWhereCondition");
     }
@@ -2,30 +2,16 @@ package com.kinnarastudio.kecakplugins.openbravo.datalist;
 
 import javax.servlet.http.HttpServletRequest;
 
-import java.io.BufferedReader;
-
-import com.kinnarastudio.obclient.exceptions.OpenbravoClientException;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpUriRequest;
 import org.joget.apps.app.service.AppUtil;
 import org.joget.apps.datalist.model.DataList;
 import org.joget.apps.datalist.model.DataListActionDefault;
 import org.joget.apps.datalist.model.DataListActionResult;
-import org.joget.apps.datalist.model.DataListCollection;
-import org.joget.apps.form.model.FormRow;
-import org.joget.commons.util.LogUtil;
 import org.joget.plugin.base.PluginManager;
 import org.joget.workflow.util.WorkflowUtil;
-import org.json.JSONException;
-import org.json.JSONObject;
 
 import com.kinnarastudio.kecakplugins.openbravo.commons.RestMixin;
 
-import java.io.IOException;
-import java.io.InputStreamReader;
 import java.util.*;
-import java.util.stream.Collectors;
 
 public class OpenbravoDeleteListDataListAction extends DataListActionDefault implements RestMixin {
     final public static String LABEL = "Openbravo Delete";
@@ -47,7 +33,6 @@ public class OpenbravoDeleteListDataListAction extends DataListActionDefault imp
 
     @Override
     public DataListActionResult executeAction(DataList dataList, String[] rowKeys) {
-        final String primaryKeyColumn = dataList.getBinder().getPrimaryKeyColumnName();
         final DataListActionResult result = new DataListActionResult();
         result.setType(DataListActionResult.TYPE_REDIRECT);
         result.setUrl("REFERER");
@@ -59,53 +44,18 @@ public class OpenbravoDeleteListDataListAction extends DataListActionDefault imp
         }
 
         if (rowKeys != null && rowKeys.length > 0) {
-            final StringBuilder url = new StringBuilder(getApiEndPoint(getPropertyBaseUrl(), getPropertyTableEntity()));
-            final Map<String, String> headers = Collections.singletonMap("Authorization", getAuthenticationHeader(getPropertyUsername(), getPropertyPassword()));
-
-            final DataListCollection<Map<String, String>> sortedDataListCollection = dataList.getRows();
-            sortedDataListCollection.sort(Comparator.comparing(m -> m.getOrDefault(primaryKeyColumn, "")));
-
-            for (String rowKey : rowKeys) {
-                try {
-                    final FormRow row = new FormRow();
-                    row.setId(rowKey);
-
-                    if("toggle".equalsIgnoreCase(getPropertyActivationMode())) {
-                        final boolean isCurrentlyActive = "true".equalsIgnoreCase(getValue(sortedDataListCollection, primaryKeyColumn, rowKey, "active"));
-                        row.setProperty("active", String.valueOf(!isCurrentlyActive));
-                    } else {
-                        row.setProperty("active", String.valueOf("activate".equalsIgnoreCase(getPropertyActivationMode())));
-                    }
-
-                    final HttpUriRequest request = getHttpRequest(null, url.toString(), "DELETE", headers, row);
-                    final HttpClient client = getHttpClient(isIgnoreCertificateError());
-                    final HttpResponse response = client.execute(request);
-
-                    final int statusCode = getResponseStatus(response);
-                    if (getStatusGroupCode(statusCode) != 200) {
-                        throw new OpenbravoClientException("Response code [" + statusCode + "] is not 200 (Success)");
-                    } else if (statusCode != 200) {
-                        LogUtil.warn(getClassName(), "Response code [" + statusCode + "] is considered as success");
-                    }
-
-                    if (!isJsonResponse(response)) {
-                        throw new OpenbravoClientException("Content type is not JSON");
-                    }
-
-                    try (BufferedReader br = new BufferedReader(new InputStreamReader(response.getEntity().getContent()))) {
-                        final JSONObject jsonResponseBody = new JSONObject(br.lines().collect(Collectors.joining())).getJSONObject("response");
-                        final int status = jsonResponseBody.getInt("status");
-                        if (status != 0) {
-                            throw new OpenbravoClientException(jsonResponseBody.getJSONObject("error").getString("message"));
-                        }
-                    }
-                } catch (OpenbravoClientException | IOException | JSONException e) {
-                    LogUtil.error(getClassName(), e, e.getMessage());
-                }
-
-                if(isRowAction()) {
-                    break;
-                }
+            final String baseUrl = getPropertyBaseUrl();
+            final String tableEntity = getPropertyTableEntity();
+            final String url = getApiEndPoint(baseUrl, tableEntity);
+            final String username = getPropertyUsername();
+            final String password = getPropertyPassword();
+            final Map<String, String> headers = Collections.singletonMap("Authorization", getAuthenticationHeader(username, password));
+            final List<String> keys = isRowAction() ? Collections.singletonList(rowKeys[0]) : Arrays.asList(rowKeys);
+
+            final String message = executeActivationRequests(baseUrl, tableEntity, username, password, keys, getPropertyActivationMode(),
+                    (rowKey, row) -> getHttpRequest(null, url, "DELETE", headers, row));
+            if (message != null) {
+                result.setMessage(message);
             }
         }
         return result;
@@ -139,18 +89,6 @@ public class OpenbravoDeleteListDataListAction extends DataListActionDefault imp
         return getPropertyString("mode");
     }
 
-    protected String getValue(@SuppressWarnings("rawtypes") DataListCollection<Map<String, String>> sortedRows, String primaryKeyColumnName, String key, String columnName) {
-        final Map<String, String> searchKey = new HashMap<>();
-        searchKey.put(primaryKeyColumnName, key);
-
-        final int index = Collections.binarySearch(sortedRows, searchKey, Comparator.comparing(m -> m.getOrDefault(primaryKeyColumnName, "")));
-        if(index >= 0) {
-            return sortedRows.get(index).getOrDefault(columnName, "");
-        }
-
-        return "";
-    }
-
     protected boolean isRowAction() {
         return "true".equalsIgnoreCase(getPropertyString("isRowAction"));
     }
@@ -9,6 +9,7 @@ import org.joget.apps.datalist.model.DataListColumnFormatDefault;
 import org.joget.plugin.base.PluginManager;
 
 import java.util.Map;
+import java.util.Optional;
 import java.util.ResourceBundle;
 
 public class OpenbravoProductImageUrlFormatter extends DataListColumnFormatDefault {
@@ -18,7 +19,14 @@ public class OpenbravoProductImageUrlFormatter extends DataListColumnFormatDefau
     public String format(DataList dataList, DataListColumn dataListColumn, Object row, Object value) {
         final AppDefinition appDefinition = AppUtil.getCurrentAppDefinition();
         final String imageId = ((Map<String, String>)row).get("image");
-        return String.format("%s/web/json/app/%s/plugin/%s/service?imageId=%s", getLocalHost(), appDefinition.getAppId(), OpenbravoProductPhotoWebService.class.getName(), imageId);
+        final StringBuilder url = new StringBuilder(String.format("%s/web/json/app/%s/plugin/%s/service?imageId=%s", getLocalHost(), appDefinition.getAppId(), OpenbravoProductPhotoWebService.class.getName(), imageId));
+
+        // thumbnail variant, generated and cached by the web service
+        Optional.of(getPropertyString("width")).filter(s -> !s.isEmpty()).ifPresent(s -> url.append("&width=").append(s));
+        Optional.of(getPropertyString("height")).filter(s -> !s.isEmpty()).ifPresent(s -> url.append("&height=").append(s));
+        Optional.of(getPropertyString("format")).filter(s -> !s.isEmpty()).ifPresent(s -> url.append("&format=").append(s));
+
+        return url.toString();
     }
 
     @Override
@@ -51,7 +59,7 @@ public class OpenbravoProductImageUrlFormatter extends DataListColumnFormatDefau
 
     @Override
     public String getPropertyOptions() {
-        return AppUtil.readPluginResource(getClassName(), "/properties/datalist/OpenbravoProductImageUrlFormatter.json");
+        return AppUtil.readPluginResource(getClassName(), "/properties/datalist/OpenbravoProductImageUrlFormatter.json", null, true, "/messages/Openbravo");
     }
 
     protected String getLocalHost() {
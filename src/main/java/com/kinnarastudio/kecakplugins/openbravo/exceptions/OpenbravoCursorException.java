@@ -0,0 +1,18 @@
+package com.kinnarastudio.kecakplugins.openbravo.exceptions;
+
+import com.kinnarastudio.obclient.exceptions.OpenbravoClientException;
+
+/**
+ * Unchecked wrapper of {@link OpenbravoClientException} thrown while iterating
+ * {@link com.kinnarastudio.kecakplugins.openbravo.service.OpenbravoRecordCursor}
+ */
+public class OpenbravoCursorException extends RuntimeException {
+    public OpenbravoCursorException(OpenbravoClientException cause) {
+        super(cause.getMessage(), cause);
+    }
+
+    @Override
+    public synchronized OpenbravoClientException getCause() {
+        return (OpenbravoClientException) super.getCause();
+    }
+}
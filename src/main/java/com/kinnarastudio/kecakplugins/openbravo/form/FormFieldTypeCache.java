@@ -0,0 +1,138 @@
+package com.kinnarastudio.kecakplugins.openbravo.form;
+
+import com.kinnarastudio.kecakplugins.openbravo.commons.PropertyParser;
+import com.kinnarastudio.kecakplugins.openbravo.commons.TtlCache;
+import com.kinnarastudio.kecakplugins.openbravo.service.KecakService;
+import org.joget.apps.app.model.AppDefinition;
+import org.joget.apps.app.service.AppUtil;
+import org.joget.apps.form.model.Element;
+import org.joget.apps.form.model.Form;
+import org.joget.apps.form.model.FormData;
+import org.joget.apps.form.service.FormUtil;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Field types of a form, compiled once per (app ID, app version, app modified date, form ID).
+ * <p>
+ * Stores look up the field type of every submitted value, walking the element tree for each cell is
+ * replaced by one set lookup. The key is built from the current app definition only, the form definition is
+ * not loaded on lookup. Saving the app gives a new modified date and a new cache key, otherwise changes of the
+ * form definition are picked up after the time-to-live; fields missing from the cached definition are looked up
+ * in the form when it is available.
+ */
+public final class FormFieldTypeCache {
+    public final static String PROPERTY_TTL = "openbravo.cache.formFields.ttl";
+    public final static long DEFAULT_TTL = 3600;
+
+    private final static TtlCache<List<Object>, FieldTypes> cache = new TtlCache<>(1000, fields -> 1);
+
+    private FormFieldTypeCache() {
+    }
+
+    /**
+     * @param formDefId form definition ID of current app
+     * @return IDs of fields with numeric validator
+     * @throws Exception when form cannot be generated
+     */
+    @Nonnull
+    public static Set<String> getNumericFields(@Nonnull String formDefId) throws Exception {
+        final List<Object> key = getKey(formDefId);
+        final FieldTypes cached = key == null ? null : cache.get(key);
+        if (cached != null) {
+            return cached.numericFields;
+        }
+
+        final FieldTypes fieldTypes = collectFieldTypes(KecakService.getInstance().generateForm(formDefId));
+        if (key != null) {
+            cache.put(key, fieldTypes, getTtl());
+        }
+        return fieldTypes.numericFields;
+    }
+
+    /**
+     * @param form     generated form
+     * @param formData form data
+     * @param fieldId  field ID
+     * @return true when field has numeric validator, fields missing from the cached definition are looked up in form
+     */
+    public static boolean isNumericField(@Nonnull Form form, @Nonnull FormData formData, @Nonnull String fieldId) {
+        final FieldTypes fieldTypes = getFieldTypes(form);
+        if (fieldTypes.fields.contains(fieldId)) {
+            return fieldTypes.numericFields.contains(fieldId);
+        }
+
+        return isNumeric(FormUtil.findElement(fieldId, form, formData));
+    }
+
+    public static void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    private static FieldTypes getFieldTypes(Form form) {
+        final List<Object> key = getKey(form.getPropertyString("id"));
+        if (key == null) {
+            return collectFieldTypes(form);
+        }
+
+        FieldTypes fieldTypes = cache.get(key);
+        if (fieldTypes == null) {
+            fieldTypes = collectFieldTypes(form);
+            cache.put(key, fieldTypes, getTtl());
+        }
+        return fieldTypes;
+    }
+
+    @Nullable
+    private static List<Object> getKey(@Nullable String formDefId) {
+        final AppDefinition appDefinition = AppUtil.getCurrentAppDefinition();
+        if (appDefinition == null || formDefId == null || formDefId.isEmpty()) {
+            return null;
+        }
+
+        return Arrays.asList(appDefinition.getAppId(), appDefinition.getVersion(), appDefinition.getDateModified(), formDefId);
+    }
+
+    private static long getTtl() {
+        return TimeUnit.SECONDS.toMillis(PropertyParser.getSystemLong(PROPERTY_TTL, 0, DEFAULT_TTL));
+    }
+
+    private static boolean isNumeric(@Nullable Element element) {
+        return Optional.ofNullable(element)
+                .map(Element::getValidator)
+                .map(v -> v.getPropertyString("type"))
+                .map("numeric"::equalsIgnoreCase)
+                .orElse(false);
+    }
+
+    private static FieldTypes collectFieldTypes(Element root) {
+        final Set<String> fields = new HashSet<>();
+        final Set<String> numericFields = new HashSet<>();
+        final Deque<Element> elements = new ArrayDeque<>();
+        elements.push(root);
+        while (!elements.isEmpty()) {
+            final Element element = elements.pop();
+            final String id = element.getPropertyString("id");
+            fields.add(id);
+            if (isNumeric(element)) {
+                numericFields.add(id);
+            }
+
+            Optional.ofNullable(element.getChildren()).ifPresent(children -> children.forEach(elements::push));
+        }
+        return new FieldTypes(fields, numericFields);
+    }
+
+    private static class FieldTypes {
+        private final Set<String> fields;
+        private final Set<String> numericFields;
+
+        private FieldTypes(Set<String> fields, Set<String> numericFields) {
+            this.fields = Collections.unmodifiableSet(fields);
+            this.numericFields = Collections.unmodifiableSet(numericFields);
+        }
+    }
+}
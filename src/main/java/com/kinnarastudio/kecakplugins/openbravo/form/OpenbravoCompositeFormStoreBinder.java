@@ -2,11 +2,12 @@ package com.kinnarastudio.kecakplugins.openbravo.form;
 
 import com.kinnarastudio.commons.Try;
 import com.kinnarastudio.commons.jsonstream.JSONStream;
+import com.kinnarastudio.kecakplugins.openbravo.commons.EntityChangeNotifier;
 import com.kinnarastudio.kecakplugins.openbravo.commons.RestMixin;
 import com.kinnarastudio.obclient.exceptions.OpenbravoClientException;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.impl.client.CloseableHttpClient;
 import org.joget.apps.app.service.AppUtil;
 import org.joget.apps.form.model.*;
 import org.joget.apps.form.service.FormUtil;
@@ -40,7 +41,7 @@ public class OpenbravoCompositeFormStoreBinder extends FormBinder implements For
                 .orElse(null);
 
         final Form form = FormUtil.findRootForm(element);
-        String tableEntity = getPropertyString("tableEntity");
+        final String tableEntity = getPropertyString("tableEntity");
         final String url = getApiEndPoint(getPropertyBaseUrl(), tableEntity);
         final Map<String, String> headers = Collections.singletonMap("Authorization", getAuthenticationHeader(getPropertyUsername(), getPropertyPassword()));
         final FormRow row = rowSet.get(0);
@@ -55,31 +56,33 @@ public class OpenbravoCompositeFormStoreBinder extends FormBinder implements For
 
         try {
             final HttpUriRequest request = getHttpRequest(workflowAssignment, url, "POST", headers, row);
-            final HttpClient client = getHttpClient(isIgnoreCertificateError());
-            final HttpResponse response = client.execute(request);
-
-            final int statusCode = getResponseStatus(response);
-            if (getStatusGroupCode(statusCode) != 200) {
-                throw new OpenbravoClientException("Response code [" + statusCode + "] is not 200 (Success) url [" + url + "]");
-            } else if (statusCode != 200) {
-                LogUtil.warn(getClassName(), "Response code [" + statusCode + "] is considered as success");
-            }
+            final CloseableHttpClient client = getHttpClient(getPropertyBaseUrl(), isIgnoreCertificateError());
+            try (CloseableHttpResponse response = client.execute(request)) {
+                final int statusCode = getResponseStatus(response);
+                if (getStatusGroupCode(statusCode) != 200) {
+                    throw new OpenbravoClientException("Response code [" + statusCode + "] is not 200 (Success) url [" + url + "]");
+                } else if (statusCode != 200) {
+                    LogUtil.warn(getClassName(), "Response code [" + statusCode + "] is considered as success");
+                }
 
-            if (!isJsonResponse(response)) {
-                throw new OpenbravoClientException("Content type is not JSON");
-            }
+                if (!isJsonResponse(response)) {
+                    throw new OpenbravoClientException("Content type is not JSON");
+                }
 
-            try (BufferedReader br = new BufferedReader(new InputStreamReader(response.getEntity().getContent()))) {
-                final JSONObject jsonResponseBody = new JSONObject(br.lines().collect(Collectors.joining())).getJSONObject("response");
-                LogUtil.info(getClassName(), "JSON Response Body Store Binder: " + jsonResponseBody.toString());
-                final int status = jsonResponseBody.getInt("status");
-                if (status != 0) {
-                    throw new OpenbravoClientException(jsonResponseBody.getJSONObject("response").getJSONObject("error").getString("message"));
+                try (BufferedReader br = new BufferedReader(new InputStreamReader(response.getEntity().getContent()))) {
+                    final JSONObject jsonResponseBody = new JSONObject(br.lines().collect(Collectors.joining())).getJSONObject("response");
+                    LogUtil.info(getClassName(), "JSON Response Body Store Binder: " + jsonResponseBody.toString());
+                    final int status = jsonResponseBody.getInt("status");
+                    if (status != 0) {
+                        throw new OpenbravoClientException(jsonResponseBody.getJSONObject("response").getJSONObject("error").getString("message"));
+                    }
                 }
             }
         } catch (OpenbravoClientException | IOException | JSONException e) {
             LogUtil.error(getClassName(), e, e.getMessage());
             formData.addFormError("", e.getMessage());
+        } finally {
+            EntityChangeNotifier.notifyChange(getPropertyBaseUrl(), tableEntity);
         }
 
         return rowSet;
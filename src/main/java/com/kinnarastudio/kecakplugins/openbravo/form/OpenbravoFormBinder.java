@@ -4,11 +4,11 @@ import com.kinnarastudio.commons.Try;
 import com.kinnarastudio.commons.jsonstream.JSONStream;
 import com.kinnarastudio.kecakplugins.openbravo.commons.RestMixin;
 import com.kinnarastudio.kecakplugins.openbravo.exceptions.OpenbravoCreateRecordException;
+import com.kinnarastudio.kecakplugins.openbravo.service.OpenbravoService;
 import com.kinnarastudio.obclient.exceptions.OpenbravoClientException;
-import com.kinnarastudio.obclient.service.OpenbravoService;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.impl.client.CloseableHttpClient;
 import org.joget.apps.app.service.AppUtil;
 import org.joget.apps.form.model.*;
 import org.joget.apps.form.service.FormUtil;
@@ -53,29 +53,29 @@ public class OpenbravoFormBinder extends FormBinder implements FormLoadElementBi
 
         try {
             final HttpUriRequest request = getHttpRequest(workflowAssignment, url.toString(), "GET", headers);
-            final HttpClient client = getHttpClient(isIgnoreCertificateError());
-            final HttpResponse response = client.execute(request);
-
-            final int statusCode = getResponseStatus(response);
-            if (statusCode == 404) {
-                LogUtil.debug(getClassName(), "ID [" + primaryKey + "] : No record");
-                return null;
-            } else if (getStatusGroupCode(statusCode) != 200) {
-                throw new OpenbravoClientException("ID [" + primaryKey + "] : Response code [" + statusCode + "] is not 200 (Success) url [" + url + "]");
-            } else if (statusCode != 200) {
-                LogUtil.warn(getClassName(), "ID [" + primaryKey + "] : Response code [" + statusCode + "] is considered as success");
-            }
-
-            if (!isJsonResponse(response)) {
-                throw new OpenbravoClientException("Content type is not JSON");
-            }
-
-            try (BufferedReader br = new BufferedReader(new InputStreamReader(response.getEntity().getContent()))) {
-                final JSONObject jsonResponseBody = new JSONObject(br.lines().collect(Collectors.joining()));
-                return new FormRowSet() {{
-                    final FormRow row = convertJson(jsonResponseBody);
-                    add(row);
-                }};
+            final CloseableHttpClient client = getHttpClient(getBaseUrl(), isIgnoreCertificateError());
+            try (CloseableHttpResponse response = client.execute(request)) {
+                final int statusCode = getResponseStatus(response);
+                if (statusCode == 404) {
+                    LogUtil.debug(getClassName(), "ID [" + primaryKey + "] : No record");
+                    return null;
+                } else if (getStatusGroupCode(statusCode) != 200) {
+                    throw new OpenbravoClientException("ID [" + primaryKey + "] : Response code [" + statusCode + "] is not 200 (Success) url [" + url + "]");
+                } else if (statusCode != 200) {
+                    LogUtil.warn(getClassName(), "ID [" + primaryKey + "] : Response code [" + statusCode + "] is considered as success");
+                }
+
+                if (!isJsonResponse(response)) {
+                    throw new OpenbravoClientException("Content type is not JSON");
+                }
+
+                try (BufferedReader br = new BufferedReader(new InputStreamReader(response.getEntity().getContent()))) {
+                    final JSONObject jsonResponseBody = new JSONObject(br.lines().collect(Collectors.joining()));
+                    return new FormRowSet() {{
+                        final FormRow row = convertJson(jsonResponseBody);
+                        add(row);
+                    }};
+                }
             }
         } catch (OpenbravoClientException | IOException | JSONException e) {
             LogUtil.error(getClassName(), e, e.getMessage());
@@ -85,9 +85,9 @@ public class OpenbravoFormBinder extends FormBinder implements FormLoadElementBi
 
     @Override
     public FormRowSet store(Element form, FormRowSet rowSet, FormData formData) {
+        // parent is stored once, grids rely on the primary key published below
         final Boolean isStored = (Boolean) form.getProperty("_stored");
         if (isStored != null && isStored) {
-//            return rowSet;
             return Optional.of(form)
                     .map(Element::getStoreBinder)
                     .map(formData::getStoreBinderData)
@@ -98,13 +98,16 @@ public class OpenbravoFormBinder extends FormBinder implements FormLoadElementBi
 
         final boolean isDebugging = isDebugging();
 
-        final OpenbravoService obService = OpenbravoService.getInstance();
-        obService.setShortCircuit(true);
-        obService.setNoFilterActive(isNoFilterActive());
-        obService.setIgnoreCertificateError(isIgnoreCertificateError());
+        final OpenbravoService obService = OpenbravoService.builder()
+                .setShortCircuit(true)
+                .setNoFilterActive(isNoFilterActive())
+                .setIgnoreCertificateError(isIgnoreCertificateError())
+                .build();
 
         String tableEntity = getTableEntity();
 
+        final Form rootForm = form instanceof Form ? (Form) form : FormUtil.findRootForm(form);
+
         final Map<String, Object> row = Optional.ofNullable(rowSet)
                 .stream()
                 .flatMap(FormRowSet::stream)
@@ -113,14 +116,7 @@ public class OpenbravoFormBinder extends FormBinder implements FormLoadElementBi
                 .stream()
                 .flatMap(Collection::stream)
                 .collect(Collectors.toUnmodifiableMap(e -> String.valueOf(e.getKey()), entry -> {
-                    final String elementId = String.valueOf(entry.getKey());
-                    final Element element = FormUtil.findElement(elementId, form, formData);
-                    final boolean isNumeric = Optional.ofNullable(element)
-                            .map(Element::getValidator)
-                            .map(v -> v.getPropertyString("type"))
-                            .map("numeric"::equalsIgnoreCase)
-                            .orElse(false);
-
+                    final boolean isNumeric = FormFieldTypeCache.isNumericField(rootForm, formData, String.valueOf(entry.getKey()));
                     try {
                         return isNumeric ? new BigDecimal(String.valueOf(entry.getValue())) : String.valueOf(entry.getValue());
                     } catch (NumberFormatException ex) {
@@ -142,6 +138,9 @@ public class OpenbravoFormBinder extends FormBinder implements FormLoadElementBi
             formData.setStoreBinderData(form.getStoreBinder(), resultRowSet);
             formData.setPrimaryKeyValue(result.getId());
 
+            // grids of this submission use the stored record as their parent
+            OpenbravoFormSaveCoordinator.publishPrimaryKey(form instanceof Form ? (Form) form : FormUtil.findRootForm(form), formData, result.getId());
+
             return resultRowSet;
 
         } catch (com.kinnarastudio.obclient.exceptions.OpenbravoClientException e) {
@@ -243,10 +242,11 @@ public class OpenbravoFormBinder extends FormBinder implements FormLoadElementBi
     public void delete(Element element, FormRowSet rowSet, FormData formData, boolean deleteGrid, boolean deleteSubform, boolean abortProcess, boolean deleteFiles, boolean hardDelete) {
         final boolean isDebugging = isDebugging();
 
-        final OpenbravoService obService = OpenbravoService.getInstance();
-        obService.setShortCircuit(false);
-        obService.setNoFilterActive(isNoFilterActive());
-        obService.setIgnoreCertificateError(isIgnoreCertificateError());
+        final OpenbravoService obService = OpenbravoService.builder()
+                .setShortCircuit(false)
+                .setNoFilterActive(isNoFilterActive())
+                .setIgnoreCertificateError(isIgnoreCertificateError())
+                .build();
 
         final String baseUrl = getBaseUrl();
         final String tableEntity = getTableEntity();
@@ -258,7 +258,7 @@ public class OpenbravoFormBinder extends FormBinder implements FormLoadElementBi
                 .flatMap(Collection::stream)
                 .map(FormRow::getId)
                 .forEach(Try.onConsumer(key -> {
-                    final Map<String, Object> result = obService.delete(baseUrl, tableEntity, key, username, password);
+                    final Map<String, String> result = obService.delete(baseUrl, tableEntity, key, username, password);
                     if (isDebugging) {
                         LogUtil.info(getClassName(), "ID [" + result.get("id") + "] from entity [" + tableEntity + "] has been deleted");
                     }
@@ -0,0 +1,177 @@
+package com.kinnarastudio.kecakplugins.openbravo.form;
+
+import com.kinnarastudio.kecakplugins.openbravo.commons.BackgroundExecutor;
+import com.kinnarastudio.obclient.exceptions.OpenbravoClientException;
+import org.joget.apps.form.model.*;
+import org.joget.apps.form.service.FormUtil;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Coordinate saving of a form and its {@link OpenbravoGridBinder} grids.
+ * <p>
+ * One coordinator is kept for every submission, as property {@value #PROPERTY_COORDINATOR} of the root form
+ * together with the {@link FormData} of the submission. The parent binder stores the parent record and publishes
+ * its primary key using {@link #publishPrimaryKey(Form, FormData, String)}. The framework stores the parent
+ * before the child elements, and {@link OpenbravoFormBinder} stores the parent only once per form, so the key is
+ * known when the first grid is stored. Grids, which only depend on the parent, are sent to Openbravo concurrently
+ * on the first grid store call. Only grids the framework collected store data for, and which are not read only,
+ * are sent ahead; other grids are left to their own store call. Grid requests are prepared on the calling thread
+ * since hash variables and form definitions need the Kecak context.
+ */
+public class OpenbravoFormSaveCoordinator {
+    public final static String PROPERTY_COORDINATOR = "_openbravoSaveCoordinator";
+
+    private final Form rootForm;
+    private final FormData formData;
+
+    @Nullable
+    private volatile String primaryKey = null;
+
+    @Nullable
+    private Map<Element, FutureTask<FormRowSet>> gridResults = null;
+
+    private OpenbravoFormSaveCoordinator(Form rootForm, FormData formData) {
+        this.rootForm = rootForm;
+        this.formData = formData;
+    }
+
+    /**
+     * @param rootForm root form of the submission
+     * @param formData form data of the submission
+     * @return coordinator of the submission, a new one when the form is submitted with another form data
+     */
+    @Nonnull
+    public static OpenbravoFormSaveCoordinator getInstance(@Nonnull Form rootForm, @Nonnull FormData formData) {
+        synchronized (rootForm) {
+            final Object property = rootForm.getProperty(PROPERTY_COORDINATOR);
+            if (property instanceof OpenbravoFormSaveCoordinator && ((OpenbravoFormSaveCoordinator) property).formData == formData) {
+                return (OpenbravoFormSaveCoordinator) property;
+            }
+
+            final OpenbravoFormSaveCoordinator coordinator = new OpenbravoFormSaveCoordinator(rootForm, formData);
+            rootForm.setProperty(PROPERTY_COORDINATOR, coordinator);
+            return coordinator;
+        }
+    }
+
+    /**
+     * Publish primary key of the stored parent record to the grids of the submission
+     *
+     * @param rootForm   root form of the submission
+     * @param formData   form data of the submission
+     * @param primaryKey primary key of the parent record
+     */
+    public static void publishPrimaryKey(@Nonnull Form rootForm, @Nonnull FormData formData, @Nullable String primaryKey) {
+        getInstance(rootForm, formData).primaryKey = primaryKey;
+    }
+
+    /**
+     * Store grid. The first call sends all Openbravo grids of the form, later calls only collect their results.
+     *
+     * @param gridElement grid element
+     * @param rowSet      submitted rows
+     * @param formData    form data
+     * @return stored rows, NULL when parent is not stored
+     * @throws Exception when grid cannot be stored
+     */
+    @Nullable
+    public FormRowSet storeGrid(@Nonnull Element gridElement, @Nullable FormRowSet rowSet, @Nonnull FormData formData) throws Exception {
+        final OpenbravoGridBinder binder = (OpenbravoGridBinder) gridElement.getStoreBinder();
+
+        final String foreignKeyValue = getPrimaryKey(formData);
+        if (foreignKeyValue == null || foreignKeyValue.isEmpty()) {
+            final Map<String, String> formErrors = formData.getFormErrors();
+            if (formErrors != null && !formErrors.isEmpty()) {
+                return null;
+            }
+
+            throw new OpenbravoClientException("Foreign key [" + binder.getForeignKey() + "] is NULL");
+        }
+
+        final FutureTask<FormRowSet> result;
+        synchronized (this) {
+            if (gridResults == null) {
+                gridResults = submitGrids(gridElement, rowSet, formData, foreignKeyValue);
+            }
+            result = gridResults.get(gridElement);
+        }
+
+        if (result == null) {
+            // grid was not found in the form tree
+            return binder.prepareStore(gridElement, rowSet, formData, foreignKeyValue).call();
+        }
+
+        // run here when no pool thread has picked it up yet, does nothing when already started
+        result.run();
+
+        try {
+            return result.get();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        }
+    }
+
+    @Nullable
+    protected String getPrimaryKey(FormData formData) {
+        if (primaryKey != null) {
+            return primaryKey;
+        }
+
+        return Optional.ofNullable(rootForm.getPrimaryKeyValue(formData))
+                .orElseGet(formData::getPrimaryKeyValue);
+    }
+
+    protected Map<Element, FutureTask<FormRowSet>> submitGrids(Element currentGrid, @Nullable FormRowSet currentRowSet, FormData formData, String foreignKeyValue) {
+        final Map<Element, FutureTask<FormRowSet>> results = new HashMap<>();
+        for (Element gridElement : getGridElements(rootForm)) {
+            final OpenbravoGridBinder binder = (OpenbravoGridBinder) gridElement.getStoreBinder();
+            final FormRowSet rowSet = gridElement == currentGrid ? currentRowSet : formData.getStoreBinderData(binder);
+
+            // grids the framework will not store are left alone, they would otherwise be synchronized with no rows
+            if (gridElement != currentGrid && (rowSet == null || FormUtil.isReadonly(gridElement, formData))) {
+                continue;
+            }
+
+            FutureTask<FormRowSet> task;
+            try {
+                task = new FutureTask<>(binder.prepareStore(gridElement, rowSet, formData, foreignKeyValue));
+            } catch (Exception e) {
+                task = new FutureTask<>(() -> {
+                    throw e;
+                });
+            }
+            results.put(gridElement, task);
+
+            // the current grid is run by the calling thread
+            if (gridElement != currentGrid) {
+                try {
+                    BackgroundExecutor.getBoundedInstance().execute(task);
+                } catch (RejectedExecutionException ignored) {
+                    // run by the thread storing the grid
+                }
+            }
+        }
+
+        return results;
+    }
+
+    protected List<Element> getGridElements(Element element) {
+        final List<Element> gridElements = new ArrayList<>();
+        if (element.getStoreBinder() instanceof OpenbravoGridBinder) {
+            gridElements.add(element);
+        }
+
+        Optional.ofNullable(element.getChildren())
+                .stream()
+                .flatMap(Collection::stream)
+                .map(this::getGridElements)
+                .forEach(gridElements::addAll);
+
+        return gridElements;
+    }
+}
@@ -1,23 +1,29 @@
 package com.kinnarastudio.kecakplugins.openbravo.form;
 
-import com.kinnarastudio.kecakplugins.openbravo.service.KecakService;
+import com.kinnarastudio.kecakplugins.openbravo.commons.BulkRequestExecutor;
+import com.kinnarastudio.kecakplugins.openbravo.commons.PropertyParser;
+import com.kinnarastudio.kecakplugins.openbravo.commons.RestMixin;
+import com.kinnarastudio.kecakplugins.openbravo.service.OpenbravoService;
 import com.kinnarastudio.obclient.exceptions.OpenbravoClientException;
-import com.kinnarastudio.obclient.service.OpenbravoService;
 import org.joget.apps.app.service.AppUtil;
 import org.joget.apps.form.model.*;
 import org.joget.apps.form.service.FormUtil;
 import org.joget.commons.util.LogUtil;
 import org.joget.plugin.base.PluginManager;
+import org.json.JSONObject;
 
+import javax.annotation.Nullable;
 import java.math.BigDecimal;
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.stream.Collectors;
 
 public class OpenbravoGridBinder extends FormBinder
         implements FormLoadBinder,
         FormStoreBinder,
         FormLoadMultiRowElementBinder,
-        FormStoreMultiRowElementBinder {
+        FormStoreMultiRowElementBinder,
+        PropertyParser {
 
     public final static String LABEL = "Openbravo Grid Binder";
 
@@ -25,9 +31,10 @@ public class OpenbravoGridBinder extends FormBinder
     public FormRowSet load(Element element, String primaryKey, FormData formData) {
         if (primaryKey == null || primaryKey.isEmpty()) return null;
 
-        final OpenbravoService obService = OpenbravoService.getInstance();
-        obService.setIgnoreCertificateError(isIgnoringCertificateError());
-        obService.setNoFilterActive(isNoFilterActive());
+        final OpenbravoService obService = OpenbravoService.builder()
+                .setIgnoreCertificateError(isIgnoringCertificateError())
+                .setNoFilterActive(isNoFilterActive())
+                .build();
 
         try {
             final Map<String, String> filter = Collections.singletonMap(getForeignKey(), primaryKey);
@@ -47,80 +54,213 @@ public class OpenbravoGridBinder extends FormBinder
     @Override
     public FormRowSet store(Element element, FormRowSet rowSet, FormData formData) {
         try {
-            final KecakService kecakService = KecakService.getInstance();
-            final OpenbravoService obService = OpenbravoService.getInstance();
-            obService.setIgnoreCertificateError(isIgnoringCertificateError());
-            obService.setShortCircuit(true);
-            obService.setNoFilterActive(isNoFilterActive());
-
             final Form parentForm = FormUtil.findRootForm(element);
-            FormStoreBinder parentStoreBinder = parentForm.getStoreBinder();
-            FormRowSet storeBinderData = formData.getStoreBinderData(parentStoreBinder);
-            FormRowSet parentRowSet = parentStoreBinder.store(parentForm, storeBinderData, formData);
+            return OpenbravoFormSaveCoordinator.getInstance(parentForm, formData).storeGrid(element, rowSet, formData);
+        } catch (Exception e) {
+            final String elementId = element.getPropertyString("id");
+            formData.addFormError(elementId, e.getMessage());
+            LogUtil.error(getClassName(), e, e.getMessage());
 
-            final Map<String, String> formErrors = formData.getFormErrors();
-            if (formErrors != null && !formErrors.isEmpty()) {
-                return null;
+            return null;
+        }
+    }
+
+    /**
+     * Convert the submitted rows and return the request sending them. Conversion needs the Kecak context
+     * and runs on the calling thread, the returned request only talks to Openbravo.
+     *
+     * @param element         grid element
+     * @param rowSet          submitted rows
+     * @param formData        form data
+     * @param foreignKeyValue primary key of the parent record
+     * @return request returning the stored rows, NULL rows when nothing is submitted
+     * @throws Exception when grid form cannot be generated
+     */
+    protected Callable<FormRowSet> prepareStore(Element element, @Nullable FormRowSet rowSet, FormData formData, String foreignKeyValue) throws Exception {
+        // nothing submitted, current records are left untouched
+        if (rowSet == null) {
+            return () -> null;
+        }
+
+        final OpenbravoService obService = OpenbravoService.builder()
+                .setIgnoreCertificateError(isIgnoringCertificateError())
+                .setShortCircuit(true)
+                .setNoFilterActive(isNoFilterActive())
+                .setBatchSize(getBatchSize())
+                .build();
+
+        final String baseUrl = getBaseUrl();
+        final String tableEntity = getTableEntity();
+        final String username = getUsername();
+        final String password = getPassword();
+        final String foreignKey = getForeignKey();
+
+        final Set<String> numericFields = FormFieldTypeCache.getNumericFields(getFormDefId());
+        final String gridElementId = element.getPropertyString("id");
+
+        // submitted row and its converted record
+        final List<Map.Entry<FormRow, Map<String, Object>>> rows = new ArrayList<>();
+        for (FormRow row : rowSet) {
+            final Map<String, Object> record = toOpenbravoRow(row, numericFields, gridElementId);
+            if (!record.isEmpty()) {
+                rows.add(new AbstractMap.SimpleImmutableEntry<>(row, record));
             }
+        }
 
-            Optional.ofNullable(parentRowSet)
-                    .stream()
-                    .flatMap(Collection::stream)
-                    .findFirst()
-                    .map(FormRow::getId)
-                    .ifPresent(formData::setPrimaryKeyValue);
+        if (isSyncMode()) {
+            final boolean isDebugging = isDebugging();
+            final boolean isNoFilterActive = isNoFilterActive();
+            final int workers = getWorkers();
+            return () -> sync(obService, baseUrl, tableEntity, username, password, foreignKey, foreignKeyValue, rows, isNoFilterActive, workers, isDebugging);
+        }
 
-            final String foreignKey = getForeignKey();
+        return () -> {
+            final Map[] records = rows.stream().map(Map.Entry::getValue).toArray(Map[]::new);
+            Arrays.stream(records).forEach(m -> m.put(foreignKey, foreignKeyValue));
 
-            final Form form = kecakService.generateForm(getFormDefId());
-            String foreignKeyValue = parentForm.getPrimaryKeyValue(formData);
+            final Map<String, Object>[] result = obService.post(baseUrl, tableEntity, username, password, records);
+            return Arrays.stream(result)
+                    .map(this::toFormRow)
+                    .collect(Collectors.toCollection(FormRowSet::new));
+        };
+    }
 
-            if (foreignKeyValue == null) {
-                throw new OpenbravoClientException("Foreign key [" + foreignKey + "] is NULL");
+    /**
+     * Synchronize child records with the submitted rows. Current records, inactive ones included, are loaded
+     * once by foreign key so that a submitted row of an inactive record updates it instead of creating a copy.
+     * Records removed from the grid are deleted first, then only new and changed rows are posted. When a delete
+     * fails nothing is posted, so submitting the form again does not create the new rows twice.
+     * Inactive records are only deleted when the grid shows them. A property is compared only when
+     * the current record has a property with the same name.
+     *
+     * @param rows             submitted row and its converted record
+     * @param isNoFilterActive grid shows inactive records
+     * @param workers          parallel delete requests
+     * @return submitted rows in submitted order, posted rows carry the ID of the posted record
+     */
+    protected FormRowSet sync(OpenbravoService obService, String baseUrl, String tableEntity, String username, String password, String foreignKey, String foreignKeyValue, List<Map.Entry<FormRow, Map<String, Object>>> rows, boolean isNoFilterActive, int workers, boolean isDebugging) throws OpenbravoClientException, InterruptedException {
+        final Map<String, Map<String, Object>> currentRecords = getCurrentRecords(obService, baseUrl, tableEntity, username, password, foreignKey, foreignKeyValue);
+
+        final FormRow[] result = new FormRow[rows.size()];
+        final List<Integer> changedIndexes = new ArrayList<>();
+        final List<Map<String, Object>> changes = new ArrayList<>();
+        final Set<String> submittedIds = new HashSet<>();
+
+        for (int i = 0; i < rows.size(); i++) {
+            final FormRow row = rows.get(i).getKey();
+            final Map<String, Object> submitted = rows.get(i).getValue();
+            result[i] = row;
+
+            final String id = row.getId();
+            final Map<String, Object> current = id == null ? null : currentRecords.get(id);
+            if (current == null) {
+                // new row
+                submitted.put(foreignKey, foreignKeyValue);
+                changedIndexes.add(i);
+                changes.add(submitted);
+                continue;
             }
 
-            final String gridElementId = element.getPropertyString("id");
+            submittedIds.add(id);
 
-            final Map[] rows = Optional.ofNullable(rowSet)
-                    .stream()
-                    .flatMap(FormRowSet::stream)
-//                    .filter(row -> row.keySet().stream().noneMatch(gridElementId::equals))
-                    .map(row -> row.entrySet()
-                            .stream()
-                            .filter(e -> !"id".equalsIgnoreCase(String.valueOf(e.getKey())))
-                            .filter(e -> !gridElementId.equals(String.valueOf(e.getKey())))
-                            .collect(Collectors.toMap(e -> String.valueOf(e.getKey()), e -> {
-                                final String elementId = String.valueOf(e.getKey());
-                                final Element elmn = FormUtil.findElement(elementId, form, formData);
-                                final boolean isNumeric = Optional.ofNullable(elmn)
-                                        .map(Element::getValidator)
-                                        .map(v -> v.getPropertyString("type"))
-                                        .map("numeric"::equalsIgnoreCase)
-                                        .orElse(false);
-
-                                try {
-                                    return isNumeric ? new BigDecimal(String.valueOf(e.getValue())) : String.valueOf(e.getValue());
-                                } catch (NumberFormatException ex) {
-                                    LogUtil.error(getClassName(), ex, "[" + e.getValue() + "] is not a number");
-                                    return String.valueOf(e.getValue());
-                                }
-                            })))
-                    .filter(m -> !m.isEmpty())
-                    .toArray(Map[]::new);
-
-            Arrays.stream(rows).forEach(m -> m.put(foreignKey, foreignKeyValue));
-
-            final Map<String, Object>[] result = obService.post(getBaseUrl(), getTableEntity(), getUsername(), getPassword(), rows);
-            return Arrays.stream(result)
-                    .map(m -> m.entrySet().stream().collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue, (accept, ignore) -> accept, FormRow::new)))
-                    .collect(Collectors.toCollection(FormRowSet::new));
-        } catch (Exception e) {
-            final String elementId = element.getPropertyString("id");
-            formData.addFormError(elementId, e.getMessage());
-            LogUtil.error(getClassName(), e, e.getMessage());
+            final Map<String, Object> changed = submitted.entrySet().stream()
+                    .filter(e -> current.containsKey(e.getKey()))
+                    .filter(e -> !isSameValue(e.getValue(), current.get(e.getKey())))
+                    .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
 
-            return null;
+            if (!changed.isEmpty()) {
+                changed.put("id", id);
+                changedIndexes.add(i);
+                changes.add(changed);
+            }
         }
+
+        final List<String> deletedIds = currentRecords.entrySet().stream()
+                .filter(e -> !submittedIds.contains(e.getKey()))
+                .filter(e -> isNoFilterActive || "true".equalsIgnoreCase(String.valueOf(e.getValue().get("active"))))
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toList());
+
+        final Map<String, String> deleteFailures = BulkRequestExecutor.execute(deletedIds, workers,
+                id -> obService.delete(baseUrl, tableEntity, id, username, password));
+
+        if (!deleteFailures.isEmpty()) {
+            throw new OpenbravoClientException(deleteFailures.size() + " of " + deletedIds.size() + " removed rows could not be deleted, no changes were saved " + deleteFailures);
+        }
+
+        if (!changes.isEmpty()) {
+            final Map<String, Object>[] posted = obService.post(baseUrl, tableEntity, username, password, changes.toArray(new Map[0]));
+            for (int i = 0; i < posted.length; i++) {
+                final Object postedId = posted[i].get("id");
+                if (postedId != null) {
+                    final FormRow row = new FormRow();
+                    row.putAll(result[changedIndexes.get(i)]);
+                    row.setId(String.valueOf(postedId));
+                    result[changedIndexes.get(i)] = row;
+                }
+            }
+        }
+
+        if (isDebugging) {
+            LogUtil.info(getClassName(), "sync : current [" + currentRecords.size() + "] changes [" + changes.size() + "] deleted [" + deletedIds.size() + "]");
+        }
+
+        return Arrays.stream(result).collect(Collectors.toCollection(FormRowSet::new));
+    }
+
+    /**
+     * Convert grid row to Openbravo record, numeric fields are sent as numbers. Fields missing from the grid form
+     * definition, e.g. added since the field types were cached, are sent as text.
+     */
+    protected Map<String, Object> toOpenbravoRow(FormRow row, Set<String> numericFields, String gridElementId) {
+        return row.entrySet()
+                .stream()
+                .filter(e -> !"id".equalsIgnoreCase(String.valueOf(e.getKey())))
+                .filter(e -> !gridElementId.equals(String.valueOf(e.getKey())))
+                .collect(Collectors.toMap(e -> String.valueOf(e.getKey()), e -> {
+                    final boolean isNumeric = numericFields.contains(String.valueOf(e.getKey()));
+                    try {
+                        return isNumeric ? new BigDecimal(String.valueOf(e.getValue())) : String.valueOf(e.getValue());
+                    } catch (NumberFormatException ex) {
+                        LogUtil.error(getClassName(), ex, "[" + e.getValue() + "] is not a number");
+                        return String.valueOf(e.getValue());
+                    }
+                }, (accept, ignore) -> accept, HashMap::new));
+    }
+
+    /**
+     * Load child records of the parent, inactive ones included
+     *
+     * @return records by ID in Openbravo order
+     */
+    protected Map<String, Map<String, Object>> getCurrentRecords(OpenbravoService obService, String baseUrl, String tableEntity, String username, String password, String foreignKey, String foreignKeyValue) throws OpenbravoClientException {
+        final OpenbravoService allRecordsService = obService.toBuilder()
+                .setNoFilterActive(true)
+                .build();
+
+        return Arrays.stream(allRecordsService.get(baseUrl, tableEntity, username, password, Collections.singletonMap(foreignKey, foreignKeyValue)))
+                .collect(Collectors.toMap(m -> String.valueOf(m.get("id")), m -> m, (accept, ignore) -> accept, LinkedHashMap::new));
+    }
+
+    protected FormRow toFormRow(Map<String, Object> record) {
+        return record.entrySet().stream().collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue, (accept, ignore) -> accept, FormRow::new));
+    }
+
+    /**
+     * Compare submitted value with current Openbravo value, numbers are compared by value
+     */
+    protected boolean isSameValue(Object submitted, @Nullable Object current) {
+        final String currentValue = current == null || JSONObject.NULL.equals(current) ? "" : String.valueOf(current);
+        if (submitted instanceof BigDecimal) {
+            try {
+                return !currentValue.isEmpty() && ((BigDecimal) submitted).compareTo(new BigDecimal(currentValue)) == 0;
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+
+        final String submittedValue = submitted == null ? "" : String.valueOf(submitted);
+        return submittedValue.equals(currentValue);
     }
 
     @Override
@@ -193,4 +333,12 @@ public class OpenbravoGridBinder extends FormBinder
     public String getFormDefId() {
         return getPropertyString("formDefId");
     }
+
+    public boolean isSyncMode() {
+        return "true".equalsIgnoreCase(getPropertyString("syncMode"));
+    }
+
+    public int getWorkers() {
+        return getPropertyInt("workers", 1, RestMixin.DEFAULT_WORKERS);
+    }
 }
@@ -1,53 +1,224 @@
 package com.kinnarastudio.kecakplugins.openbravo.form;
 
+import com.kinnarastudio.kecakplugins.openbravo.commons.EntityChangeNotifier;
+import com.kinnarastudio.kecakplugins.openbravo.commons.PropertyParser;
+import com.kinnarastudio.kecakplugins.openbravo.commons.RefreshAheadCache;
 import com.kinnarastudio.kecakplugins.openbravo.commons.RestMixin;
+import com.kinnarastudio.kecakplugins.openbravo.exceptions.OpenbravoCursorException;
+import com.kinnarastudio.kecakplugins.openbravo.service.OpenbravoService;
 import com.kinnarastudio.obclient.exceptions.OpenbravoClientException;
-import com.kinnarastudio.obclient.service.OpenbravoService;
 import org.joget.apps.app.service.AppUtil;
 import org.joget.apps.form.model.*;
 import org.joget.commons.util.LogUtil;
 import org.joget.plugin.base.PluginManager;
+import org.joget.workflow.util.WorkflowUtil;
 
 import javax.annotation.Nullable;
-import java.util.Arrays;
-import java.util.Map;
-import java.util.Optional;
-import java.util.ResourceBundle;
+import java.util.*;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class OpenbravoOptionsBinder extends FormBinder implements FormLoadOptionsBinder, RestMixin, FormAjaxOptionsBinder {
     final public static String LABEL = "Openbravo Options Binder";
+    final public static int PAGE_SIZE = 500;
+    final public static int DEFAULT_MAX_ROWS = 50;
+    final public static String PARAMETER_SEARCH = "search";
+    final public static String PROPERTY_CACHE_MAX_SIZE = "openbravo.cache.options.maxSize";
+    final public static long DEFAULT_CACHE_MAX_SIZE = 500;
+
+    /**
+     * Options shared by all forms, refreshed in background after 75% of time-to-live
+     */
+    private final static RefreshAheadCache<List<Object>, FormRowSet> optionsCache = new RefreshAheadCache<>(PropertyParser.getSystemLong(PROPERTY_CACHE_MAX_SIZE, 0, DEFAULT_CACHE_MAX_SIZE), 0.75);
+
+    static {
+        EntityChangeNotifier.addListener((baseUrl, tableEntity) -> optionsCache.invalidateIf(key -> baseUrl.equals(key.get(0)) && tableEntity.equals(key.get(1))));
+    }
 
     @Override
     public FormRowSet load(Element element, String primaryKey, FormData formData) {
+        final String baseUrl = getPropertyBaseUrl();
+        final String tableEntity = getPropertyTableEntity();
+        final String username = getPropertyUsername();
+        final String password = getPropertyPassword();
+        final String where = getWhereCondition();
         final String valueColumn = getPropertyString("valueColumn");
         final String labelColumn = getPropertyString("labelColumn");
+        final String searchPath = getSearchPath(valueColumn, labelColumn);
 
+        final List<Object> cacheKey = Arrays.asList(EntityChangeNotifier.normalizeBaseUrl(baseUrl), tableEntity, where, valueColumn, labelColumn, searchPath, username);
         try {
-            final OpenbravoService openbravoService = OpenbravoService.getInstance();
-            final String[] fields = null;
-            final Map<String, Object>[] records = openbravoService.get(getPropertyBaseUrl(), getPropertyTableEntity(), getPropertyUsername(), getPropertyPassword(), fields, getWhereCondition(), null, null, null, null, null);
-            final FormRowSet rowSet = Optional.ofNullable(records)
-                    .stream()
-                    .flatMap(Arrays::stream)
-                    .map(m -> {
-                        final String value = String.valueOf(m.getOrDefault(valueColumn, ""));
-                        final String label = String.valueOf(m.getOrDefault(labelColumn, ""));
-
-                        return new FormRow() {{
-                            setProperty("value", value);
-                            setProperty("label", label.isEmpty() ? value : label);
-                        }};
-                    })
+            final FormRowSet options = optionsCache.get(cacheKey, getCacheTtl(), () -> loadOptions(baseUrl, tableEntity, username, password, where, valueColumn, labelColumn, searchPath));
+
+            final FormRowSet rowSet = new FormRowSet();
+            rowSet.addAll(options);
+            rowSet.setMultiRow(true);
+            return rowSet;
+        } catch (Exception e) {
+            LogUtil.error(getClassName(), e, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Load all options, may be called from background thread when refreshing cache
+     *
+     * @return
+     * @throws OpenbravoClientException
+     */
+    protected FormRowSet loadOptions(String baseUrl, String tableEntity, String username, String password, String where, String valueColumn, String labelColumn, String searchPath) throws OpenbravoClientException {
+        final OpenbravoService openbravoService = OpenbravoService.builder()
+                .setIgnoreCertificateError(isIgnoreCertificateError())
+                .build();
+        final String[] fields = OpenbravoService.toSelectedProperties(valueColumn, labelColumn);
+
+        // options are shown in label order, id keeps the pages stable when labels are equal
+        final String sort = searchPath + ",id";
+        try (Stream<Map<String, Object>> records = openbravoService.stream(baseUrl, tableEntity, username, password, fields, where, null, sort, null, PAGE_SIZE)) {
+            final FormRowSet rowSet = records
+                    .map(m -> toFormRow(m, valueColumn, labelColumn))
                     .collect(Collectors.toCollection(FormRowSet::new));
 
             rowSet.setMultiRow(true);
 
             return rowSet;
+        } catch (OpenbravoCursorException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Clear cached options, all entities when tableEntity is NULL
+     *
+     * @param baseUrl
+     * @param tableEntity
+     */
+    public static void invalidateCache(@Nullable String baseUrl, @Nullable String tableEntity) {
+        if (tableEntity == null) {
+            optionsCache.invalidateAll();
+        } else {
+            EntityChangeNotifier.notifyChange(baseUrl, tableEntity);
+        }
+    }
+
+    /**
+     * Typeahead options, search term and dependency values are filtered by Openbravo and
+     * only the first {@link #getMaxRows()} records are requested
+     *
+     * @param dependencyValues
+     * @param search
+     * @return
+     */
+    protected FormRowSet loadTypeaheadOptions(@Nullable String[] dependencyValues, @Nullable String search) {
+        final String valueColumn = getPropertyString("valueColumn");
+        final String labelColumn = getPropertyString("labelColumn");
+        final String dependencyColumn = getPropertyString("dependencyColumn");
+
+        final FormRowSet rowSet = new FormRowSet();
+        rowSet.setMultiRow(true);
+
+        final List<String> conditions = new ArrayList<>();
+
+        final String customWhereCondition = getWhereCondition();
+        if (!customWhereCondition.isEmpty()) {
+            conditions.add(customWhereCondition);
+        }
+
+        if (!dependencyColumn.isEmpty()) {
+            final String[] values = Optional.ofNullable(dependencyValues)
+                    .stream()
+                    .flatMap(Arrays::stream)
+                    .filter(s -> s != null && !s.isEmpty())
+                    .flatMap(s -> Arrays.stream(s.split(";")))
+                    .toArray(String[]::new);
+
+            // no parent selected, nothing to show
+            if (values.length == 0) {
+                return rowSet;
+            }
+
+            // dependency values are record IDs, compare them with the ID of the referenced record
+            final String dependencyPath = toPropertyPath(dependencyColumn);
+            conditions.add((dependencyPath.endsWith(".id") ? dependencyPath : dependencyPath + ".id") + " IN (" + Arrays.stream(values).map(this::quote).collect(Collectors.joining(",")) + ")");
+        }
+
+        final String searchPath = getSearchPath(valueColumn, labelColumn);
+        if (search != null && !search.trim().isEmpty()) {
+            conditions.add("upper(" + searchPath + ") LIKE upper(" + quote("%" + escapeLike(search.trim()) + "%") + ") ESCAPE '\\'");
+        }
+
+        final String where = conditions.stream().collect(Collectors.joining(") AND (", "(", ")"));
+        final int maxRows = getMaxRows();
+
+        final OpenbravoService openbravoService = OpenbravoService.builder()
+                .setIgnoreCertificateError(isIgnoreCertificateError())
+                .build();
+        final String[] fields = OpenbravoService.toSelectedProperties(valueColumn, labelColumn);
+        // records are passed while the response is read, only shown when the whole request succeeds
+        final List<FormRow> rows = new ArrayList<>(maxRows);
+        try {
+            openbravoService.get(getPropertyBaseUrl(), getPropertyTableEntity(), getPropertyUsername(), getPropertyPassword(), fields, conditions.isEmpty() ? null : where, null, searchPath, null, 0, maxRows,
+                    m -> rows.add(toFormRow(m, valueColumn, labelColumn)));
+            rowSet.addAll(rows);
         } catch (OpenbravoClientException e) {
             LogUtil.error(getClassName(), e, e.getMessage());
-            return null;
         }
+
+        return rowSet;
+    }
+
+    protected FormRow toFormRow(Map<String, Object> record, String valueColumn, String labelColumn) {
+        final String value = String.valueOf(record.getOrDefault(valueColumn, ""));
+        final String label = String.valueOf(record.getOrDefault(labelColumn, ""));
+
+        return new FormRow() {{
+            setProperty("value", value);
+            setProperty("label", label.isEmpty() ? value : label);
+        }};
+    }
+
+    /**
+     * HQL property path the options are searched and sorted by, property "searchColumn" or the label column
+     *
+     * @param valueColumn
+     * @param labelColumn
+     * @return
+     */
+    protected String getSearchPath(String valueColumn, String labelColumn) {
+        final String searchColumn = getPropertyString("searchColumn");
+        if (!searchColumn.isEmpty()) {
+            return toPropertyPath(searchColumn);
+        }
+
+        return toPropertyPath(labelColumn.isEmpty() ? valueColumn : labelColumn);
+    }
+
+    /**
+     * Convert column name to HQL property path. <code>_identifier</code> is not a property that can be queried,
+     * <code>businessPartner$_identifier</code> is searched by <code>businessPartner.name</code>, set property
+     * "searchColumn" for entities identified by another property
+     *
+     * @param columnName
+     * @return
+     */
+    protected String toPropertyPath(String columnName) {
+        return columnName.replaceAll("\\$_identifier$", ".name").replaceAll("\\$", ".");
+    }
+
+    /**
+     * Escape LIKE wildcards, to be used with <code>ESCAPE '\'</code>
+     *
+     * @param value
+     * @return
+     */
+    protected String escapeLike(String value) {
+        return value.replace("\\", "\\\\")
+                .replace("%", "\\%")
+                .replace("_", "\\_");
+    }
+
+    protected String quote(String value) {
+        return "'" + value.replaceAll("'", "''") + "'";
     }
 
     protected String getPropertyBaseUrl() {
@@ -101,7 +272,15 @@ public class OpenbravoOptionsBinder extends FormBinder implements FormLoadOption
 
     @Override
     public FormRowSet loadAjaxOptions(@Nullable String[] depedencyVal) {
-        return load(null, null, null);
+        if (!isTypeahead()) {
+            return load(null, null, null);
+        }
+
+        final String search = Optional.ofNullable(WorkflowUtil.getHttpServletRequest())
+                .map(r -> r.getParameter(PARAMETER_SEARCH))
+                .orElse(null);
+
+        return loadTypeaheadOptions(depedencyVal, search);
     }
 
     @Override
@@ -112,4 +291,12 @@ public class OpenbravoOptionsBinder extends FormBinder implements FormLoadOption
     protected String getWhereCondition() {
         return getPropertyString("customWhereCondition");
     }
+
+    protected boolean isTypeahead() {
+        return "true".equalsIgnoreCase(getPropertyString("typeahead"));
+    }
+
+    protected int getMaxRows() {
+        return getPropertyInt("maxRows", 1, DEFAULT_MAX_ROWS);
+    }
 }
@@ -1,25 +1,46 @@
 package com.kinnarastudio.kecakplugins.openbravo.hashvariable;
 
+import com.kinnarastudio.kecakplugins.openbravo.commons.PropertyParser;
+import com.kinnarastudio.kecakplugins.openbravo.commons.EntityChangeNotifier;
+import com.kinnarastudio.kecakplugins.openbravo.commons.PluginDefaultPropertiesCache;
+import com.kinnarastudio.kecakplugins.openbravo.commons.TtlCache;
+import com.kinnarastudio.kecakplugins.openbravo.service.OpenbravoService;
 import com.kinnarastudio.obclient.exceptions.OpenbravoClientException;
-import com.kinnarastudio.obclient.service.OpenbravoService;
-import org.joget.apps.app.dao.PluginDefaultPropertiesDao;
-import org.joget.apps.app.model.AppDefinition;
 import org.joget.apps.app.model.DefaultHashVariablePlugin;
-import org.joget.apps.app.model.PluginDefaultProperties;
 import org.joget.apps.app.service.AppUtil;
 import org.joget.commons.util.LogUtil;
-import org.joget.commons.util.StringUtil;
 import org.joget.plugin.base.PluginManager;
-import org.joget.plugin.property.service.PropertyUtil;
 import org.joget.workflow.util.WorkflowUtil;
 
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Load from ADUser
  */
 public class OpenbravoCurrentUserVariable extends DefaultHashVariablePlugin {
     public final static String LABEL = "Openbravo User Variable";
+    public final static String ENTITY = "ADUser";
+
+    public final static String PROPERTY_CACHE_TTL = "openbravo.cache.currentUser.ttl";
+    public final static String PROPERTY_CACHE_NEGATIVE_TTL = "openbravo.cache.currentUser.negativeTtl";
+    public final static String PROPERTY_CACHE_MAX_SIZE = "openbravo.cache.currentUser.maxSize";
+    public final static long DEFAULT_CACHE_TTL = 60;
+    public final static long DEFAULT_CACHE_NEGATIVE_TTL = 10;
+    public final static long DEFAULT_CACHE_MAX_SIZE = 1000;
+
+    /**
+     * ADUser record per (base URL, API user, Kecak user)
+     */
+    private final static TtlCache<List<String>, Map<String, Object>> userCache = new TtlCache<>(PropertyParser.getSystemLong(PROPERTY_CACHE_MAX_SIZE, 0, DEFAULT_CACHE_MAX_SIZE), user -> 1);
+
+    static {
+        EntityChangeNotifier.addListener((baseUrl, tableEntity) -> {
+            if (ENTITY.equals(tableEntity)) {
+                userCache.invalidateIf(key -> baseUrl.equals(key.get(0)));
+            }
+        });
+    }
 
     @Override
     public String getPrefix() {
@@ -35,21 +56,47 @@ public class OpenbravoCurrentUserVariable extends DefaultHashVariablePlugin {
         final String username = getUsername();
         final String password = getPassword();
         try {
-            final OpenbravoService obService = OpenbravoService.getInstance();
-            final Map<String, Object>[] result = obService.get(baseUrl, "ADUser", username, password, Collections.singletonMap("name", obUser));
-            return Optional.ofNullable(result)
-                    .stream()
-                    .flatMap(Arrays::stream)
-                    .findFirst()
-                    .map(m -> m.getOrDefault(key, ""))
-                    .map(String::valueOf)
-                    .orElse("");
+            final Map<String, Object> user = getUser(baseUrl, username, password, obUser);
+            return String.valueOf(user.getOrDefault(field, ""));
         } catch (OpenbravoClientException e) {
             LogUtil.error(getClassName(), e, "Error loading user [" + obUser + "] field [" + field + "]");
             return "";
         }
     }
 
+    /**
+     * Load ADUser record by name, the whole record is cached so that all fields are served by one request.
+     * Unknown users are cached as empty record for a shorter time.
+     *
+     * @param baseUrl
+     * @param username
+     * @param password
+     * @param obUser
+     * @return ADUser record, empty when not found
+     * @throws OpenbravoClientException
+     */
+    protected Map<String, Object> getUser(String baseUrl, String username, String password, String obUser) throws OpenbravoClientException {
+        final List<String> cacheKey = Arrays.asList(EntityChangeNotifier.normalizeBaseUrl(baseUrl), username, obUser);
+        final Map<String, Object> cached = userCache.get(cacheKey);
+        if (cached != null) {
+            return cached;
+        }
+
+        final OpenbravoService obService = OpenbravoService.getInstance();
+        final Map<String, Object>[] result = obService.get(baseUrl, ENTITY, username, password, Collections.singletonMap("name", obUser));
+        final Map<String, Object> user = Optional.ofNullable(result)
+                .stream()
+                .flatMap(Arrays::stream)
+                .findFirst()
+                .map(Collections::unmodifiableMap)
+                .orElseGet(Collections::emptyMap);
+
+        final long ttl = user.isEmpty() ? PropertyParser.getSystemLong(PROPERTY_CACHE_NEGATIVE_TTL, 0, DEFAULT_CACHE_NEGATIVE_TTL) : PropertyParser.getSystemLong(PROPERTY_CACHE_TTL, 0, DEFAULT_CACHE_TTL);
+        userCache.put(cacheKey, user, TimeUnit.SECONDS.toMillis(ttl));
+
+        return user;
+    }
+
     @Override
     public Collection<String> availableSyntax() {
         Collection<String> list = new ArrayList<>();
@@ -116,12 +163,6 @@ public class OpenbravoCurrentUserVariable extends DefaultHashVariablePlugin {
     }
 
     public Map<String, Object> getDefaultProperties() {
-        PluginDefaultPropertiesDao pluginDefaultPropertiesDao = (PluginDefaultPropertiesDao) AppUtil.getApplicationContext().getBean("pluginDefaultPropertiesDao");
-        AppDefinition appDefinition = AppUtil.getCurrentAppDefinition();
-        return Optional.ofNullable(pluginDefaultPropertiesDao.loadById(getClassName(), appDefinition))
-                .map(PluginDefaultProperties::getPluginProperties)
-                .map(s -> AppUtil.processHashVariable(s, null, StringUtil.TYPE_JSON, null))
-                .map(PropertyUtil::getPropertiesValueFromJson)
-                .orElseGet(Collections::emptyMap);
+        return PluginDefaultPropertiesCache.getDefaultProperties(getClassName());
     }
 }
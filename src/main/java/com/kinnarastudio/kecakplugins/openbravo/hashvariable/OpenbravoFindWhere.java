@@ -1,20 +1,21 @@
 package com.kinnarastudio.kecakplugins.openbravo.hashvariable;
 
+import com.kinnarastudio.kecakplugins.openbravo.commons.PropertyParser;
+import com.kinnarastudio.kecakplugins.openbravo.commons.EntityChangeNotifier;
+import com.kinnarastudio.kecakplugins.openbravo.commons.PluginDefaultPropertiesCache;
+import com.kinnarastudio.kecakplugins.openbravo.commons.TtlCache;
+import com.kinnarastudio.kecakplugins.openbravo.service.OpenbravoService;
 import com.kinnarastudio.obclient.exceptions.OpenbravoClientException;
-import com.kinnarastudio.obclient.service.OpenbravoService;
-import org.joget.apps.app.dao.PluginDefaultPropertiesDao;
-import org.joget.apps.app.model.AppDefinition;
 import org.joget.apps.app.model.DefaultHashVariablePlugin;
-import org.joget.apps.app.model.PluginDefaultProperties;
 import org.joget.apps.app.service.AppUtil;
 import org.joget.commons.util.LogUtil;
-import org.joget.commons.util.StringUtil;
 import org.joget.plugin.base.PluginManager;
-import org.joget.plugin.property.service.PropertyUtil;
+import org.joget.workflow.util.WorkflowUtil;
 
+import javax.servlet.http.HttpServletRequest;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Load from ADUser
@@ -22,6 +23,35 @@ import java.util.regex.Pattern;
 public class OpenbravoFindWhere extends DefaultHashVariablePlugin {
     public final static String LABEL = "Openbravo Find Using Where";
 
+    public final static String PROPERTY_CACHE_TTL = "openbravo.cache.findWhere.ttl";
+    public final static String PROPERTY_CACHE_MAX_SIZE = "openbravo.cache.findWhere.maxSize";
+    public final static long DEFAULT_CACHE_TTL = 0;
+    public final static long DEFAULT_CACHE_MAX_SIZE = 1000;
+
+    /**
+     * Records per (base URL, API user, entity, where) across requests, disabled unless TTL is set
+     */
+    private final static TtlCache<List<String>, FetchedRecord> recordCache = new TtlCache<>(PropertyParser.getSystemLong(PROPERTY_CACHE_MAX_SIZE, 0, DEFAULT_CACHE_MAX_SIZE), record -> 1);
+
+    /**
+     * Parsed hash variable keys, read without locking. Keys may contain values of nested hash variables,
+     * new keys are not cached once {@link #MAX_PARSED_KEYS} is reached
+     */
+    private final static Map<String, ParsedKey> parsedKeyCache = new ConcurrentHashMap<>();
+    private final static int MAX_PARSED_KEYS = 10000;
+
+    /**
+     * Fields recently requested per (base URL, entity), loaded together. Bounded by number of entities and
+     * by {@link #MAX_KNOWN_FIELDS} per entity, fields are forgotten after {@link #KNOWN_FIELDS_TTL}
+     */
+    private final static TtlCache<List<String>, Set<String>> knownFields = new TtlCache<>(1000, fields -> 1);
+    private final static int MAX_KNOWN_FIELDS = 50;
+    private final static long KNOWN_FIELDS_TTL = TimeUnit.HOURS.toMillis(1);
+
+    static {
+        EntityChangeNotifier.addListener((baseUrl, tableEntity) -> recordCache.invalidateIf(key -> baseUrl.equals(key.get(0)) && tableEntity.equals(key.get(2))));
+    }
+
     @Override
     public String getPrefix() {
         return "openbravoFindWhere";
@@ -31,30 +61,19 @@ public class OpenbravoFindWhere extends DefaultHashVariablePlugin {
     public String processHashVariable(String key) {
         final boolean isDebug = isDebug();
 
-        final String[] split = key.replaceAll("\\[.+]", "").split("\\.", 2);
-        final String tableEntity = Arrays.stream(split).findFirst().orElse("");
-        final String field = Arrays.stream(split).skip(1).findFirst().orElse("");
-
-        final Matcher matcher = Pattern.compile("(?<=\\[).*(?=])").matcher(key);
-        final String where = matcher.find() ? matcher.group() : "1=1";
+        final ParsedKey parsedKey = parseKey(key);
+        final String tableEntity = parsedKey.tableEntity;
+        final String field = parsedKey.field;
+        final String where = parsedKey.where;
 
         final String baseUrl = getBaseUrl();
         final String username = getUsername();
         final String password = getPassword();
         try {
-            final OpenbravoService obService = OpenbravoService.getInstance();
-            obService.setIgnoreCertificateError(getIgnoreCertificateError());
-
-            final Map<String, Object>[] result = obService.get(baseUrl, tableEntity, username, password, new String[] {field}, where, null, null, null, null, 1);
-            final String value = Optional.ofNullable(result)
-                    .stream()
-                    .flatMap(Arrays::stream)
-                    .findFirst()
-                    .map(m -> m.getOrDefault(field, ""))
-                    .map(String::valueOf)
-                    .orElse("");
-
-            if (isDebug()) {
+            final Map<String, Object> record = getRecord(baseUrl, username, password, tableEntity, where, field);
+            final String value = String.valueOf(record.getOrDefault(field, ""));
+
+            if (isDebug) {
                 LogUtil.info(getClassName(), "processHashVariable : key [" + key + "] result [" + value + "] ");
             }
 
@@ -66,6 +85,135 @@ public class OpenbravoFindWhere extends DefaultHashVariablePlugin {
         }
     }
 
+    /**
+     * Get first record matching where condition. Records are cached for the current HTTP request and optionally
+     * across requests. Every field ever requested for the entity is loaded in the same query so that other
+     * fields of the same record are served from cache.
+     *
+     * @param baseUrl
+     * @param username
+     * @param password
+     * @param tableEntity
+     * @param where
+     * @param field
+     * @return record, empty when not found
+     * @throws OpenbravoClientException
+     */
+    protected Map<String, Object> getRecord(String baseUrl, String username, String password, String tableEntity, String where, String field) throws OpenbravoClientException {
+        final String normalizedBaseUrl = EntityChangeNotifier.normalizeBaseUrl(baseUrl);
+        final List<String> cacheKey = Arrays.asList(normalizedBaseUrl, username, tableEntity, where);
+
+        final Map<List<String>, FetchedRecord> requestCache = getRequestCache();
+        final FetchedRecord requestCached = requestCache.get(cacheKey);
+        if (requestCached != null && requestCached.contains(field)) {
+            return requestCached.record;
+        }
+
+        final FetchedRecord cached = recordCache.get(cacheKey);
+        if (cached != null && cached.contains(field)) {
+            requestCache.put(cacheKey, cached);
+            return cached.record;
+        }
+
+        final Set<String> fetchedFields = getKnownFields(normalizedBaseUrl, tableEntity, field);
+        final OpenbravoService obService = OpenbravoService.builder()
+                .setIgnoreCertificateError(getIgnoreCertificateError())
+                .build();
+
+        final Map<String, Object>[] result = obService.get(baseUrl, tableEntity, username, password, OpenbravoService.toSelectedProperties(fetchedFields.toArray(new String[0])), where, null, null, null, null, 1);
+        final Map<String, Object> record = Optional.ofNullable(result)
+                .stream()
+                .flatMap(Arrays::stream)
+                .findFirst()
+                .map(Collections::unmodifiableMap)
+                .orElseGet(Collections::emptyMap);
+
+        final FetchedRecord fetched = new FetchedRecord(fetchedFields, record);
+        requestCache.put(cacheKey, fetched);
+        recordCache.put(cacheKey, fetched, TimeUnit.SECONDS.toMillis(PropertyParser.getSystemLong(PROPERTY_CACHE_TTL, 0, DEFAULT_CACHE_TTL)));
+
+        return record;
+    }
+
+    /**
+     * Add field to the fields requested for the entity
+     *
+     * @return fields to load, including field
+     */
+    protected Set<String> getKnownFields(String normalizedBaseUrl, String tableEntity, String field) {
+        final List<String> key = Arrays.asList(normalizedBaseUrl, tableEntity);
+        synchronized (knownFields) {
+            final Set<String> fields = Optional.ofNullable(knownFields.get(key))
+                    .map(HashSet::new)
+                    .orElseGet(HashSet::new);
+
+            // keep loading the first fields once the limit is reached, only add the requested one
+            if (fields.size() < MAX_KNOWN_FIELDS) {
+                fields.add(field);
+                knownFields.put(key, Collections.unmodifiableSet(fields), KNOWN_FIELDS_TTL);
+            }
+
+            final Set<String> fetchedFields = new HashSet<>(fields);
+            fetchedFields.add(field);
+            return fetchedFields;
+        }
+    }
+
+    /**
+     * Parse <code>TABLE_ENTITY[WHERE].GET_FIELD</code>, parsed keys are cached
+     *
+     * @param key
+     * @return
+     */
+    protected ParsedKey parseKey(String key) {
+        final ParsedKey cached = parsedKeyCache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        // WHERE is everything between the first '[' and the last ']'
+        final int open = key.indexOf('[');
+        final int close = key.lastIndexOf(']');
+
+        final String where;
+        final String entityAndField;
+        if (open >= 0 && close > open) {
+            where = key.substring(open + 1, close);
+            entityAndField = where.isEmpty() ? key : key.substring(0, open) + key.substring(close + 1);
+        } else {
+            where = "1=1";
+            entityAndField = key;
+        }
+
+        final int dot = entityAndField.indexOf('.');
+        final String tableEntity = dot < 0 ? entityAndField : entityAndField.substring(0, dot);
+        final String field = dot < 0 ? "" : entityAndField.substring(dot + 1);
+
+        final ParsedKey parsedKey = new ParsedKey(tableEntity, where, field);
+        if (parsedKeyCache.size() < MAX_PARSED_KEYS) {
+            parsedKeyCache.put(key, parsedKey);
+        }
+        return parsedKey;
+    }
+
+    /**
+     * @return records cached in current HTTP request, or a new map when there is no request
+     */
+    protected Map<List<String>, FetchedRecord> getRequestCache() {
+        final HttpServletRequest request = WorkflowUtil.getHttpServletRequest();
+        if (request == null) {
+            return new HashMap<>();
+        }
+
+        final String attributeName = getClassName() + ".records";
+        Map<List<String>, FetchedRecord> requestCache = (Map<List<String>, FetchedRecord>) request.getAttribute(attributeName);
+        if (requestCache == null) {
+            requestCache = new ConcurrentHashMap<>();
+            request.setAttribute(attributeName, requestCache);
+        }
+        return requestCache;
+    }
+
     @Override
     public Collection<String> availableSyntax() {
         return Collections.singleton(getPrefix() + ".TABLE_ENTITY[WHERE].GET_FIELD");
@@ -131,12 +279,47 @@ public class OpenbravoFindWhere extends DefaultHashVariablePlugin {
 
 
     public Map<String, Object> getDefaultProperties() {
-        PluginDefaultPropertiesDao pluginDefaultPropertiesDao = (PluginDefaultPropertiesDao) AppUtil.getApplicationContext().getBean("pluginDefaultPropertiesDao");
-        AppDefinition appDefinition = AppUtil.getCurrentAppDefinition();
-        return Optional.ofNullable(pluginDefaultPropertiesDao.loadById(getClassName(), appDefinition))
-                .map(PluginDefaultProperties::getPluginProperties)
-                .map(s -> AppUtil.processHashVariable(s, null, StringUtil.TYPE_JSON, null))
-                .map(PropertyUtil::getPropertiesValueFromJson)
-                .orElseGet(Collections::emptyMap);
+        return PluginDefaultPropertiesCache.getDefaultProperties(getClassName());
+    }
+
+    protected static class FetchedRecord {
+        private final Set<String> fields;
+        private final Map<String, Object> record;
+
+        protected FetchedRecord(Set<String> fields, Map<String, Object> record) {
+            this.fields = fields;
+            this.record = record;
+        }
+
+        protected boolean contains(String field) {
+            return record.isEmpty() || fields.contains(field);
+        }
+    }
+
+    /**
+     * Parsed <code>TABLE_ENTITY[WHERE].GET_FIELD</code>
+     */
+    protected static final class ParsedKey {
+        private final String tableEntity;
+        private final String where;
+        private final String field;
+
+        protected ParsedKey(String tableEntity, String where, String field) {
+            this.tableEntity = tableEntity;
+            this.where = where;
+            this.field = field;
+        }
+
+        protected String getTableEntity() {
+            return tableEntity;
+        }
+
+        protected String getWhere() {
+            return where;
+        }
+
+        protected String getField() {
+            return field;
+        }
     }
 }
@@ -1,10 +1,13 @@
 package com.kinnarastudio.kecakplugins.openbravo.process;
 
+import com.kinnarastudio.kecakplugins.openbravo.commons.PropertyParser;
 import com.kinnarastudio.kecakplugins.openbravo.service.KecakService;
-import com.kinnarastudio.obclient.service.OpenbravoService;
+import com.kinnarastudio.kecakplugins.openbravo.service.OpenbravoService;
 import org.joget.apps.app.service.AppService;
 import org.joget.apps.app.service.AppUtil;
 import org.joget.apps.datalist.model.DataList;
+import org.joget.apps.datalist.model.DataListBinder;
+import org.joget.apps.datalist.model.DataListFilterQueryObject;
 import org.joget.apps.form.model.Element;
 import org.joget.apps.form.model.Form;
 import org.joget.apps.form.model.FormData;
@@ -14,11 +17,17 @@ import org.joget.plugin.base.DefaultApplicationPlugin;
 import org.joget.plugin.base.PluginManager;
 import org.joget.workflow.model.WorkflowAssignment;
 
+import javax.annotation.Nullable;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
-public class DataListOpenbravoTool extends DefaultApplicationPlugin {
+public class DataListOpenbravoTool extends DefaultApplicationPlugin implements PropertyParser {
     public final static String LABEL = "Openbravo Tool";
+    public final static int DEFAULT_PAGE_SIZE = 100;
 
     @Override
     public String getName() {
@@ -38,11 +47,28 @@ public class DataListOpenbravoTool extends DefaultApplicationPlugin {
         return getClass().getPackage().getImplementationTitle();
     }
 
+    /**
+     * Rows are posted to Openbravo by a bounded pool of workers while the datalist is still being read.
+     * The number of chunks in flight is limited, so source rows are not all kept in memory. Results are
+     * stored back to the form only after the last page is read, since storing may change the rows
+     * matching the datalist and shift the following pages.
+     *
+     * @param map
+     * @return summary of row counts : total, success, failed
+     */
     @Override
     public Object execute(Map map) {
+        final Map<String, Integer> summary = new LinkedHashMap<>();
+        summary.put("total", 0);
+        summary.put("success", 0);
+        summary.put("failed", 0);
+
+        ExecutorService executor = null;
         try {
-            final OpenbravoService openbravoService = OpenbravoService.getInstance();
-            openbravoService.setIgnoreCertificateError(ignoreCertificateError());
+            final OpenbravoService openbravoService = OpenbravoService.builder()
+                    .setIgnoreCertificateError(ignoreCertificateError())
+                    .setBatchSize(getBatchSize())
+                    .build();
 
             final KecakService kecakService = KecakService.getInstance();
 
@@ -60,61 +86,213 @@ public class DataListOpenbravoTool extends DefaultApplicationPlugin {
             if (isDebug()) {
                 LogUtil.info(getClassName(), "baseUrl [" + baseUrl + "] tableEntity [" + tableEntity + "] username [" + username + "]");
             }
-            final Map<String, String> jsonKeyToDataListFieldMap = getDataListFieldMapping();
-            final Map<String, Object>[] rows = Optional.ofNullable(dataList.getRows())
-                    .stream()
-                    .flatMap(Collection<Map<String, String>>::stream)
-                    .map(row -> jsonKeyToDataListFieldMap.entrySet()
-                            .stream()
-                            .collect(Collectors.toUnmodifiableMap(e -> e.getKey(), e -> row.getOrDefault(e.getValue(), ""))))
-                    .toArray(Map[]::new);
-
-            final Map<String, Object>[] postResult = openbravoService.post(baseUrl, tableEntity, username, password, rows);
-            assert rows.length == postResult.length;
 
             final String formDefId = getFormDefId();
+            final Form form;
             if (formDefId.isEmpty()) {
                 if (isDebug()) {
                     LogUtil.info(getClassName(), "Ignoring response");
                 }
-                return null;
+                form = null;
+            } else {
+                form = kecakService.generateForm(formDefId);
             }
 
-            final Form form = kecakService.generateForm(formDefId);
-            final AppService appService = (AppService) AppUtil.getApplicationContext().getBean("appService");
+            final int workers = getWorkers();
+            final int maxInFlight = workers * 2;
+            executor = Executors.newFixedThreadPool(workers);
 
-            final Map<String, String> elementToJsonMap = getFormFieldMapping();
+            final Map<String, String> jsonKeyToDataListFieldMap = getDataListFieldMapping();
+            final Map<String, String> elementToJsonMap = form == null ? Collections.emptyMap() : getFormFieldMapping();
+            final Deque<Map.Entry<RowChunk, Future<Map<String, Object>[]>>> inFlight = new ArrayDeque<>();
+            final Iterator<RowChunk> chunks = getRowChunks(dataList, jsonKeyToDataListFieldMap, primaryKeyField, openbravoService.getBatchSize());
+
+            // posted chunks are stored to the form in order while the workers post the next ones,
+            // at most maxInFlight chunks are pending
+            while (chunks.hasNext()) {
+                final RowChunk chunk = chunks.next();
+                final Future<Map<String, Object>[]> future = executor.submit(() -> openbravoService.post(baseUrl, tableEntity, username, password, chunk.rows));
+                inFlight.add(new AbstractMap.SimpleImmutableEntry<>(chunk, future));
+
+                // back pressure, store the oldest chunk before reading more rows
+                while (inFlight.size() >= maxInFlight) {
+                    storeResult(inFlight.poll(), form, elementToJsonMap, summary);
+                }
+            }
 
-            for (int i = 0; i < postResult.length; i++) {
-                final Map<String, Object> resultRow = postResult[i];
-                final Map<String, Object> row = rows[i];
+            while (!inFlight.isEmpty()) {
+                storeResult(inFlight.poll(), form, elementToJsonMap, summary);
+            }
+        } catch (InterruptedException e) {
+            LogUtil.error(getClassName(), e, e.getMessage());
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            LogUtil.error(getClassName(), e, e.getMessage());
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+
+        LogUtil.info(getClassName(), "execute : summary " + summary);
 
-                final String primaryKey = String.valueOf(row.get(primaryKeyField));
-                final FormData formData = new FormData() {{
-                    setPrimaryKeyValue(primaryKey);
-                }};
+        return summary;
+    }
 
-                elementToJsonMap.forEach((elementId, jsonKey) -> {
-                    final Element element = FormUtil.findElement(elementId, form, formData);
-                    if (element == null) return;
+    /**
+     * Page through the datalist binder and split each page into chunks of mapped rows.
+     * Only one page is kept in memory at a time. Pages are read in primary key order and the next page
+     * starts after the last key read, so storing results to the form does not shift the following pages.
+     *
+     * @param dataList
+     * @param jsonKeyToDataListFieldMap
+     * @param primaryKeyField
+     * @param chunkSize
+     * @return
+     */
+    protected Iterator<RowChunk> getRowChunks(DataList dataList, Map<String, String> jsonKeyToDataListFieldMap, String primaryKeyField, int chunkSize) {
+        final DataListBinder binder = dataList.getBinder();
+        final DataListFilterQueryObject[] filterQueryObjects = Optional.ofNullable(dataList.getFilterQueryObjects())
+                .orElseGet(() -> new DataListFilterQueryObject[0]);
+        final String primaryKeyColumn = binder.getColumnName(primaryKeyField);
+        final int pageSize = Math.max(chunkSize, getPageSize());
+
+        return new Iterator<>() {
+            private Iterator<Map<String, Object>> page = Collections.emptyIterator();
+
+            @Nullable
+            private String lastKey = null;
+            private boolean lastPage = false;
+
+            @Override
+            public boolean hasNext() {
+                if (!page.hasNext() && !lastPage) {
+                    final List<Map<String, Object>> rows = Optional.ofNullable(binder.getData(dataList, binder.getProperties(), getPageFilters(), primaryKeyField, false, 0, pageSize))
+                            .map(c -> (List<Map<String, Object>>) c)
+                            .orElseGet(Collections::emptyList);
+
+                    if (isDebug()) {
+                        LogUtil.info(getClassName(), "getRowChunks : after [" + lastKey + "] rows [" + rows.size() + "]");
+                    }
+
+                    lastPage = rows.size() < pageSize;
+                    if (!rows.isEmpty()) {
+                        final Object key = rows.get(rows.size() - 1).get(primaryKeyField);
+                        if (key == null) {
+                            LogUtil.warn(getClassName(), "Primary key [" + primaryKeyField + "] is empty, stop reading the datalist");
+                            lastPage = true;
+                        } else {
+                            lastKey = String.valueOf(key);
+                        }
+                    }
+                    page = rows.iterator();
+                }
 
-                    final String parameterName = FormUtil.getElementParameterName(element);
+                return page.hasNext();
+            }
 
-                    final Object value = resultRow.get(jsonKey);
-                    if (value == null) return;
+            private DataListFilterQueryObject[] getPageFilters() {
+                if (lastKey == null) {
+                    return filterQueryObjects;
+                }
 
-                    formData.addRequestParameterValues(parameterName, new String[]{String.valueOf(value)});
-                });
+                final DataListFilterQueryObject keysetFilter = new DataListFilterQueryObject();
+                keysetFilter.setOperator("AND");
+                keysetFilter.setQuery(primaryKeyColumn + " > ?");
+                keysetFilter.setValues(new String[]{lastKey});
 
-                final boolean ignoreValidation = true;
-                appService.submitForm(form, formData, ignoreValidation);
+                final DataListFilterQueryObject[] pageFilters = Arrays.copyOf(filterQueryObjects, filterQueryObjects.length + 1);
+                pageFilters[filterQueryObjects.length] = keysetFilter;
+                return pageFilters;
             }
 
-        } catch (Exception e) {
-            LogUtil.error(getClassName(), e, e.getMessage());
+            @Override
+            public RowChunk next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+
+                final List<String> primaryKeys = new ArrayList<>(chunkSize);
+                final List<Map<String, Object>> chunk = new ArrayList<>(chunkSize);
+                while (chunk.size() < chunkSize && hasNext()) {
+                    final Map<String, Object> row = page.next();
+                    primaryKeys.add(String.valueOf(row.get(primaryKeyField)));
+                    chunk.add(jsonKeyToDataListFieldMap.entrySet()
+                            .stream()
+                            .collect(Collectors.toUnmodifiableMap(Map.Entry::getKey, e -> Optional.ofNullable(row.get(e.getValue())).orElse(""))));
+                }
+                return new RowChunk(primaryKeys.toArray(new String[0]), chunk.toArray(new Map[0]));
+            }
+        };
+    }
+
+    /**
+     * Wait for chunk to be posted and store the result to the form
+     *
+     * @param chunk            posted rows and pending result
+     * @param form             form to store result, NULL to ignore response
+     * @param elementToJsonMap form field mapping
+     * @param summary          input/output, row counters
+     * @throws InterruptedException
+     */
+    protected void storeResult(Map.Entry<RowChunk, Future<Map<String, Object>[]>> chunk, @Nullable Form form, Map<String, String> elementToJsonMap, Map<String, Integer> summary) throws InterruptedException {
+        final RowChunk rows = chunk.getKey();
+        summary.merge("total", rows.rows.length, Integer::sum);
+
+        final Map<String, Object>[] postResult;
+        try {
+            postResult = chunk.getValue().get();
+        } catch (ExecutionException e) {
+            LogUtil.error(getClassName(), e.getCause(), "Error posting [" + rows.rows.length + "] row(s)");
+            summary.merge("failed", rows.rows.length, Integer::sum);
+            return;
+        }
+
+        for (int i = 0; i < postResult.length; i++) {
+            final Map<String, Object> resultRow = postResult[i];
+
+            if (resultRow == null || resultRow.isEmpty()) {
+                summary.merge("failed", 1, Integer::sum);
+                continue;
+            }
+
+            summary.merge("success", 1, Integer::sum);
+
+            if (form != null) {
+                storeRow(form, rows.primaryKeys[i], resultRow, elementToJsonMap);
+            }
         }
 
-        return null;
+        if (isDebug()) {
+            LogUtil.info(getClassName(), "storeResult : progress " + summary);
+        }
+    }
+
+    /**
+     * Store the posted result of one row to the form
+     *
+     * @param form             form to store result
+     * @param primaryKey       source primary key
+     * @param resultRow        posted result
+     * @param elementToJsonMap form field mapping
+     */
+    protected void storeRow(Form form, String primaryKey, Map<String, Object> resultRow, Map<String, String> elementToJsonMap) {
+        final AppService appService = (AppService) AppUtil.getApplicationContext().getBean("appService");
+
+        final FormData formData = new FormData() {{
+            setPrimaryKeyValue(primaryKey);
+        }};
+
+        elementToJsonMap.forEach((elementId, jsonKey) -> Optional.ofNullable(resultRow.get(jsonKey)).ifPresent(value -> {
+            final Element element = FormUtil.findElement(elementId, form, formData);
+            if (element == null) return;
+
+            final String parameterName = FormUtil.getElementParameterName(element);
+            formData.addRequestParameterValues(parameterName, new String[]{String.valueOf(value)});
+        }));
+
+        final boolean ignoreValidation = true;
+        appService.submitForm(form, formData, ignoreValidation);
     }
 
     @Override
@@ -176,6 +354,14 @@ public class DataListOpenbravoTool extends DefaultApplicationPlugin {
                 .collect(Collectors.toUnmodifiableMap(m -> m.get("formField"), m -> m.get("jsonKey")));
     }
 
+    public int getPageSize() {
+        return getPropertyInt("pageSize", 1, DEFAULT_PAGE_SIZE);
+    }
+
+    public int getWorkers() {
+        return getPropertyInt("workers", 1, 1);
+    }
+
     public boolean isDebug() {
         return "true".equalsIgnoreCase(getPropertyString("debug"));
     }
@@ -183,4 +369,17 @@ public class DataListOpenbravoTool extends DefaultApplicationPlugin {
     protected boolean ignoreCertificateError() {
         return "true".equalsIgnoreCase(getPropertyString("ignoreCertificateError"));
     }
+
+    /**
+     * Mapped rows sent in one request and the primary keys of their source rows
+     */
+    protected static class RowChunk {
+        private final String[] primaryKeys;
+        private final Map<String, Object>[] rows;
+
+        protected RowChunk(String[] primaryKeys, Map<String, Object>[] rows) {
+            this.primaryKeys = primaryKeys;
+            this.rows = rows;
+        }
+    }
 }
@@ -0,0 +1,111 @@
+package com.kinnarastudio.kecakplugins.openbravo.service;
+
+import com.kinnarastudio.kecakplugins.openbravo.commons.BackgroundExecutor;
+import com.kinnarastudio.kecakplugins.openbravo.exceptions.OpenbravoCursorException;
+import com.kinnarastudio.obclient.exceptions.OpenbravoClientException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Lazy iterator over Openbravo records.
+ * <p>
+ * Records are loaded in pages of {@code pageSize} rows using {@code _startRow} and {@code _endRow}.
+ * The next page is requested in background as soon as the current one is received, so only two pages
+ * are kept in memory at any time. Close the cursor to cancel pending request when not fully consumed.
+ */
+public class OpenbravoRecordCursor implements Iterator<Map<String, Object>>, Closeable {
+    private final OpenbravoService service;
+    private final String baseUrl;
+    private final String tableEntity;
+    private final String username;
+    private final String password;
+    private final String[] fields;
+    private final String condition;
+    private final Object[] arguments;
+    private final String sort;
+    private final Boolean desc;
+    private final int pageSize;
+
+    private Iterator<Map<String, Object>> page = Collections.emptyIterator();
+    private Future<Map<String, Object>[]> nextPage;
+    private int startRow = 0;
+    private boolean closed = false;
+
+    OpenbravoRecordCursor(@Nonnull OpenbravoService service, @Nonnull String baseUrl, @Nonnull String tableEntity, @Nonnull String username, @Nonnull String password, @Nullable String[] fields, @Nullable String condition, @Nullable Object[] arguments, @Nullable String sort, @Nullable Boolean desc, int pageSize) {
+        this.service = service;
+        this.baseUrl = baseUrl;
+        this.tableEntity = tableEntity;
+        this.username = username;
+        this.password = password;
+        this.fields = fields;
+        this.condition = condition;
+        this.arguments = arguments;
+        this.sort = sort;
+        this.desc = desc;
+        this.pageSize = Math.max(1, pageSize);
+
+        nextPage = prefetch();
+    }
+
+    /**
+     * @return true when there are more records
+     * @throws OpenbravoCursorException when page cannot be loaded
+     */
+    @Override
+    public boolean hasNext() {
+        while (!closed && !page.hasNext() && nextPage != null) {
+            final Map<String, Object>[] records = await(nextPage);
+
+            // last page is not full
+            nextPage = records.length < pageSize ? null : prefetch();
+            page = Arrays.asList(records).iterator();
+        }
+
+        return !closed && page.hasNext();
+    }
+
+    @Override
+    public Map<String, Object> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        return page.next();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        page = Collections.emptyIterator();
+        if (nextPage != null) {
+            nextPage.cancel(true);
+            nextPage = null;
+        }
+    }
+
+    protected Future<Map<String, Object>[]> prefetch() {
+        final int start = startRow;
+        final int end = start + pageSize;
+        startRow = end;
+        return BackgroundExecutor.getInstance().submit(() -> service.get(baseUrl, tableEntity, username, password, fields, condition, arguments, sort, desc, start, end));
+    }
+
+    protected Map<String, Object>[] await(Future<Map<String, Object>[]> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            close();
+            throw new OpenbravoCursorException(new OpenbravoClientException(e));
+        } catch (ExecutionException e) {
+            close();
+            final Throwable cause = e.getCause();
+            throw new OpenbravoCursorException(cause instanceof OpenbravoClientException ? (OpenbravoClientException) cause : new OpenbravoClientException(cause));
+        }
+    }
+}
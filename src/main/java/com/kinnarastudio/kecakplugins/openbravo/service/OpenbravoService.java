@@ -1,15 +1,24 @@
 package com.kinnarastudio.kecakplugins.openbravo.service;
 
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 import com.kinnarastudio.commons.Try;
 import com.kinnarastudio.commons.jsonstream.JSONCollectors;
 import com.kinnarastudio.commons.jsonstream.JSONStream;
 import com.kinnarastudio.commons.jsonstream.model.JSONObjectEntry;
+import com.kinnarastudio.kecakplugins.openbravo.commons.EntityChangeNotifier;
+import com.kinnarastudio.kecakplugins.openbravo.commons.HttpClientPool;
 import com.kinnarastudio.kecakplugins.openbravo.exceptions.OpenbravoCreateRecordException;
 import com.kinnarastudio.obclient.annotation.ObEntity;
 import com.kinnarastudio.obclient.annotation.ObField;
 import com.kinnarastudio.obclient.exceptions.OpenbravoClientException;
-import com.kinnarastudio.obclient.service.RestService;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
+import org.apache.http.StatusLine;
+import org.apache.http.client.methods.*;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
 import org.joget.commons.util.LogUtil;
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -17,56 +26,89 @@ import org.json.JSONObject;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.function.Consumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Collector;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 
 /**
- * Use {@link com.kinnarastudio.obclient.service.OpenbravoService}
+ * Openbravo JSON REST service
+ *
+ * All requests are sent through the shared connection pool in {@link HttpClientPool}
  */
-@Deprecated
 public class OpenbravoService {
-    public final static DateFormat DF = new SimpleDateFormat("yyyy-MM-dd");
+    public final static String DATE_FORMAT = "yyyy-MM-dd";
 
-    private static OpenbravoService instance = null;
-    Exception cutCircuitCause = null;
-    private boolean ignoreCertificateError = false;
-    private boolean isDebug = false;
-    private boolean shortCircuit = false;
-    private boolean noFilterActive = false;
-    private boolean cutCircuit = false;
+    /**
+     * Not thread safe, use {@link #DATE_FORMAT}
+     */
+    @Deprecated
+    public final static DateFormat DF = new SimpleDateFormat(DATE_FORMAT);
+
+    private final static OpenbravoService DEFAULT_INSTANCE = builder().build();
+
+    private final boolean ignoreCertificateError;
+    private final boolean isDebug;
+    private final boolean shortCircuit;
+    private final boolean noFilterActive;
+    private final int batchSize;
 
-    private OpenbravoService() {
+    /**
+     * Use {@link #builder()}, subclasses override requests, e.g. to replace Openbravo in tests
+     *
+     * @param builder configuration
+     */
+    protected OpenbravoService(Builder builder) {
+        this.ignoreCertificateError = builder.ignoreCertificateError;
+        this.isDebug = builder.isDebug;
+        this.shortCircuit = builder.shortCircuit;
+        this.noFilterActive = builder.noFilterActive;
+        this.batchSize = builder.batchSize;
     }
 
-    public static synchronized OpenbravoService getInstance() {
-        if (instance == null) instance = new OpenbravoService();
+    /**
+     * Service with default configuration. Instances are immutable and safe to be shared between threads,
+     * use {@link #builder()} for other configuration.
+     *
+     * @return default service
+     */
+    public static OpenbravoService getInstance() {
+        return DEFAULT_INSTANCE;
+    }
 
-        instance.shortCircuit = false;
-        instance.cutCircuit = false;
-        instance.isDebug = false;
-        instance.ignoreCertificateError = false;
-        instance.noFilterActive = false;
+    public static Builder builder() {
+        return new Builder();
+    }
 
-        return instance;
+    /**
+     * Builder with current configuration, to derive a new service
+     *
+     * @return builder
+     */
+    public Builder toBuilder() {
+        return new Builder()
+                .setIgnoreCertificateError(ignoreCertificateError)
+                .setDebug(isDebug)
+                .setShortCircuit(shortCircuit)
+                .setNoFilterActive(noFilterActive)
+                .setBatchSize(batchSize);
     }
 
     public Map<String, String> delete(@Nonnull String baseUrl, @Nonnull String tableEntity, @Nonnull String primaryKey, @Nonnull String username, @Nonnull String password) throws OpenbravoClientException {
         LogUtil.info(getClass().getName(), "delete : baseUrl [" + baseUrl + "] tableEntity [" + tableEntity + "] primaryKey [" + primaryKey + "] username [" + username + "]");
 
         try {
-            final RestService restService = RestService.getInstance();
-            restService.setIgnoreCertificate(ignoreCertificateError);
-            restService.setDebug(isDebug);
-
             final StringBuilder url = new StringBuilder()
                     .append(baseUrl)
                     .append("/org.openbravo.service.json.jsonrest/")
@@ -78,47 +120,25 @@ public class OpenbravoService {
                 addUrlParameter(url, "_noActiveFilter", "true");
             }
 
-            final Map<String, String> headers = Collections.singletonMap("Authorization", restService.getBasicAuthenticationHeader(username, password));
-            final HttpResponse response = restService.doDelete(url.toString(), headers);
-
-            final int statusCode = restService.getResponseStatus(response);
-            if (restService.getStatusGroupCode(statusCode) != 200) {
-                throw new com.kinnarastudio.obclient.exceptions.RestClientException("Response code [" + statusCode + "] is not 200 (Success) url [" + url + "]");
-            } else if (statusCode != 200) {
-                LogUtil.warn(getClass().getName(), "Response code [" + statusCode + "] is considered as success");
-            }
-
-            if (!restService.isJsonResponse(response)) {
-                throw new com.kinnarastudio.obclient.exceptions.RestClientException("Content type is not JSON");
-            }
-
-            try (BufferedReader br = new BufferedReader(new InputStreamReader(response.getEntity().getContent()))) {
-                final String responsePayload = br.lines().collect(Collectors.joining());
-
-                if (isDebug) {
-                    LogUtil.info(getClass().getName(), "get : responsePayload [" + responsePayload + "]");
+            final Map<String, String> headers = Collections.singletonMap("Authorization", getBasicAuthenticationHeader(username, password));
+            try (CloseableHttpResponse response = execute(baseUrl, new HttpDelete(url.toString()), headers)) {
+                final int statusCode = getResponseStatus(response);
+                if (getStatusGroupCode(statusCode) != 200) {
+                    throw new com.kinnarastudio.obclient.exceptions.RestClientException("Response code [" + statusCode + "] is not 200 (Success) url [" + url + "]");
+                } else if (statusCode != 200) {
+                    LogUtil.warn(getClass().getName(), "Response code [" + statusCode + "] is considered as success");
                 }
 
-                final JSONObject jsonResponse = new JSONObject(responsePayload)
-                        .getJSONObject("response");
-
-
-                final int status = jsonResponse.optInt("status", -1);
-                if (status != 0) {
-                    throw new OpenbravoClientException(responsePayload);
+                if (!isJsonResponse(response)) {
+                    throw new com.kinnarastudio.obclient.exceptions.RestClientException("Content type is not JSON");
                 }
 
-                final JSONObject jsonData = jsonResponse.getJSONObject("data");
-                return JSONStream.of(jsonData, Try.onBiFunction(JSONObject::getString))
-                        .peek(e -> {
-                            if (isDebug && "_identifier".equals(e.getKey())) {
-                                LogUtil.info(getClass().getName(), "get : identifier [" + e.getValue() + "]");
-                            }
-                        })
-                        .collect(Collectors.toUnmodifiableMap(JSONObjectEntry::getKey, JSONObjectEntry::getValue));
+                return readRecordResponse(response);
             }
         } catch (com.kinnarastudio.obclient.exceptions.RestClientException | JSONException | IOException e) {
             throw new OpenbravoClientException(e);
+        } finally {
+            EntityChangeNotifier.notifyChange(baseUrl, tableEntity);
         }
     }
 
@@ -134,10 +154,6 @@ public class OpenbravoService {
         LogUtil.info(getClass().getName(), "get : baseUrl [" + baseUrl + "] tableEntity [" + tableEntity + "] primaryKey [" + primaryKey + "] username [" + username + "] password [" + password + "]");
 
         try {
-            final RestService restService = RestService.getInstance();
-            restService.setIgnoreCertificate(ignoreCertificateError);
-            restService.setDebug(isDebug);
-
             final StringBuilder url = new StringBuilder()
                     .append(baseUrl)
                     .append("/org.openbravo.service.json.jsonrest/")
@@ -149,44 +165,20 @@ public class OpenbravoService {
                 addUrlParameter(url, "_noActiveFilter", "true");
             }
 
-            final Map<String, String> headers = Collections.singletonMap("Authorization", restService.getBasicAuthenticationHeader(username, password));
-            final HttpResponse response = restService.doGet(url.toString(), headers);
-
-            final int statusCode = restService.getResponseStatus(response);
-            if (restService.getStatusGroupCode(statusCode) != 200) {
-                throw new com.kinnarastudio.obclient.exceptions.RestClientException("Response code [" + statusCode + "] is not 200 (Success) url [" + url + "]");
-            } else if (statusCode != 200) {
-                LogUtil.warn(getClass().getName(), "Response code [" + statusCode + "] is considered as success");
-            }
-
-            if (!restService.isJsonResponse(response)) {
-                throw new com.kinnarastudio.obclient.exceptions.RestClientException("Content type is not JSON");
-            }
-
-            try (BufferedReader br = new BufferedReader(new InputStreamReader(response.getEntity().getContent()))) {
-                final String responsePayload = br.lines().collect(Collectors.joining());
-
-                if (isDebug) {
-                    LogUtil.info(getClass().getName(), "get : responsePayload [" + responsePayload + "]");
+            final Map<String, String> headers = Collections.singletonMap("Authorization", getBasicAuthenticationHeader(username, password));
+            try (CloseableHttpResponse response = execute(baseUrl, new HttpGet(url.toString()), headers)) {
+                final int statusCode = getResponseStatus(response);
+                if (getStatusGroupCode(statusCode) != 200) {
+                    throw new com.kinnarastudio.obclient.exceptions.RestClientException("Response code [" + statusCode + "] is not 200 (Success) url [" + url + "]");
+                } else if (statusCode != 200) {
+                    LogUtil.warn(getClass().getName(), "Response code [" + statusCode + "] is considered as success");
                 }
 
-                final JSONObject jsonResponse = new JSONObject(responsePayload)
-                        .getJSONObject("response");
-
-
-                final int status = jsonResponse.optInt("status", -1);
-                if (status != 0) {
-                    throw new OpenbravoClientException(responsePayload);
+                if (!isJsonResponse(response)) {
+                    throw new com.kinnarastudio.obclient.exceptions.RestClientException("Content type is not JSON");
                 }
 
-                final JSONObject jsonData = jsonResponse.getJSONObject("data");
-                return JSONStream.of(jsonData, Try.onBiFunction(JSONObject::getString))
-                        .peek(e -> {
-                            if (isDebug && "_identifier".equals(e.getKey())) {
-                                LogUtil.info(getClass().getName(), "get : identifier [" + e.getValue() + "]");
-                            }
-                        })
-                        .collect(Collectors.toUnmodifiableMap(JSONObjectEntry::getKey, JSONObjectEntry::getValue));
+                return readRecordResponse(response);
             }
         } catch (com.kinnarastudio.obclient.exceptions.RestClientException | JSONException | IOException e) {
             throw new OpenbravoClientException(e);
@@ -273,13 +265,35 @@ public class OpenbravoService {
      * @throws OpenbravoClientException
      */
     public Map<String, Object>[] get(@Nonnull String baseUrl, @Nonnull String tableEntity, @Nonnull String username, @Nonnull String password, @Nullable String[] fields, @Nullable String condition, Object[] arguments, @Nullable String sort, @Nullable Boolean desc, @Nullable Integer startRow, @Nullable Integer endRow) throws OpenbravoClientException {
+        final List<Map<String, Object>> records = new ArrayList<>();
+        get(baseUrl, tableEntity, username, password, fields, condition, arguments, sort, desc, startRow, endRow, records::add);
+        return records.toArray(new Map[0]);
+    }
+
+    /**
+     * Streaming version of {@link #get(String, String, String, String, String[], String, Object[], String, Boolean, Integer, Integer)}.
+     * Records are parsed one at a time from the response body and passed to consumer, the response is never
+     * loaded as a whole.
+     *
+     * @param baseUrl
+     * @param tableEntity
+     * @param username
+     * @param password
+     * @param fields
+     * @param condition
+     * @param arguments
+     * @param sort
+     * @param desc
+     * @param startRow
+     * @param endRow
+     * @param consumer    called for every record in response order
+     * @return number of records
+     * @throws OpenbravoClientException
+     */
+    public int get(@Nonnull String baseUrl, @Nonnull String tableEntity, @Nonnull String username, @Nonnull String password, @Nullable String[] fields, @Nullable String condition, Object[] arguments, @Nullable String sort, @Nullable Boolean desc, @Nullable Integer startRow, @Nullable Integer endRow, @Nonnull Consumer<Map<String, Object>> consumer) throws OpenbravoClientException {
         LogUtil.info(getClass().getName(), "get : baseUrl [" + baseUrl + "] tableEntity [" + tableEntity + "] username [" + username + "]");
 
         try {
-            final RestService restService = RestService.getInstance();
-            restService.setIgnoreCertificate(ignoreCertificateError);
-            restService.setDebug(isDebug);
-
             final StringBuilder url = new StringBuilder()
                     .append(baseUrl)
                     .append("/org.openbravo.service.json.jsonrest/")
@@ -317,46 +331,247 @@ public class OpenbravoService {
                 LogUtil.info(getClass().getName(), "get : url [" + url + "]");
             }
 
-            final Map<String, String> headers = Collections.singletonMap("Authorization", restService.getBasicAuthenticationHeader(username, password));
-            final HttpResponse response = restService.doGet(url.toString(), headers);
-
-            try (BufferedReader br = new BufferedReader(new InputStreamReader(response.getEntity().getContent()))) {
-                final String responsePayload = br.lines().collect(Collectors.joining());
-
-                if (isDebug) {
-                    LogUtil.info(getClass().getName(), "get : responsePayload [" + responsePayload + "]");
-                }
-
-                final int statusCode = restService.getResponseStatus(response);
-                if (restService.getStatusGroupCode(statusCode) != 200) {
+            final Map<String, String> headers = Collections.singletonMap("Authorization", getBasicAuthenticationHeader(username, password));
+            try (CloseableHttpResponse response = execute(baseUrl, new HttpGet(url.toString()), headers)) {
+                final int statusCode = getResponseStatus(response);
+                if (getStatusGroupCode(statusCode) != 200) {
                     throw new com.kinnarastudio.obclient.exceptions.RestClientException("Response code [" + statusCode + "] is not 200 (Success) url [" + url + "]");
                 } else if (statusCode != 200) {
                     LogUtil.warn(getClass().getName(), "Response code [" + statusCode + "] is considered as success");
                 }
 
-                if (!restService.isJsonResponse(response)) {
+                if (!isJsonResponse(response)) {
                     throw new com.kinnarastudio.obclient.exceptions.RestClientException("Content type is not JSON");
                 }
 
-                final JSONObject jsonResponse = new JSONObject(responsePayload)
-                        .getJSONObject("response");
+                final int[] count = {0};
+                final Map<String, Object> jsonResponse;
+                try (JsonReader reader = new JsonReader(new InputStreamReader(response.getEntity().getContent(), StandardCharsets.UTF_8))) {
+                    jsonResponse = readResponse(reader, record -> {
+                        if (isDebug) {
+                            LogUtil.info(getClass().getName(), "get : record [" + record + "]");
+                        }
+
+                        count[0]++;
+                        consumer.accept(record);
+                    });
+                }
 
-                final int status = jsonResponse.optInt("status", -1);
+                final int status = getResponseStatus(jsonResponse);
                 if (status != 0) {
-                    throw new OpenbravoClientException(responsePayload);
+                    throw new OpenbravoClientException(String.valueOf(jsonResponse));
                 }
 
-                final JSONArray jsonData = jsonResponse.getJSONArray("data");
-                return JSONStream.of(jsonData, Try.onBiFunction(JSONArray::getJSONObject))
-                        .map(json -> JSONStream.of(json, Try.onBiFunction(JSONObject::get))
-                                .collect(Collectors.toMap(JSONObjectEntry::getKey, JSONObjectEntry::getValue)))
-                        .toArray(Map[]::new);
+                return count[0];
             }
         } catch (com.kinnarastudio.obclient.exceptions.RestClientException | JSONException | IOException e) {
             throw new OpenbravoClientException(e);
         }
     }
 
+    /**
+     * Lazy cursor over all records matching condition, loaded page by page with next page prefetched.
+     * Cursor has to be closed when it is not fully consumed.
+     *
+     * @param baseUrl
+     * @param tableEntity
+     * @param username
+     * @param password
+     * @param fields
+     * @param condition
+     * @param arguments
+     * @param sort        should be set so that pages are stable
+     * @param desc
+     * @param pageSize    number of records per request
+     * @return
+     */
+    @Nonnull
+    public OpenbravoRecordCursor cursor(@Nonnull String baseUrl, @Nonnull String tableEntity, @Nonnull String username, @Nonnull String password, @Nullable String[] fields, @Nullable String condition, @Nullable Object[] arguments, @Nullable String sort, @Nullable Boolean desc, int pageSize) {
+        return new OpenbravoRecordCursor(this, baseUrl, tableEntity, username, password, fields, condition, arguments, sort, desc, pageSize);
+    }
+
+    /**
+     * Same as {@link #cursor(String, String, String, String, String[], String, Object[], String, Boolean, int)}
+     * as a {@link Stream}, use with try-with-resources so that the cursor is closed
+     *
+     * @return
+     */
+    @Nonnull
+    public Stream<Map<String, Object>> stream(@Nonnull String baseUrl, @Nonnull String tableEntity, @Nonnull String username, @Nonnull String password, @Nullable String[] fields, @Nullable String condition, @Nullable Object[] arguments, @Nullable String sort, @Nullable Boolean desc, int pageSize) {
+        final OpenbravoRecordCursor cursor = cursor(baseUrl, tableEntity, username, password, fields, condition, arguments, sort, desc, pageSize);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(cursor, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(cursor::close);
+    }
+
+    /**
+     * Read response of a single record request, where <code>response.data</code> is the record
+     *
+     * @param response
+     * @return record values as string
+     * @throws IOException
+     * @throws JSONException
+     * @throws OpenbravoClientException when status is not 0 or response has no record
+     */
+    protected Map<String, String> readRecordResponse(@Nonnull HttpResponse response) throws IOException, JSONException, OpenbravoClientException {
+        final List<Map<String, Object>> records = new ArrayList<>(1);
+        final Map<String, Object> jsonResponse;
+        try (JsonReader reader = new JsonReader(new InputStreamReader(response.getEntity().getContent(), StandardCharsets.UTF_8))) {
+            jsonResponse = readResponse(reader, records::add);
+        }
+
+        if (isDebug) {
+            LogUtil.info(getClass().getName(), "readRecordResponse : response [" + jsonResponse + "] data [" + records + "]");
+        }
+
+        if (getResponseStatus(jsonResponse) != 0) {
+            throw new OpenbravoClientException(String.valueOf(jsonResponse));
+        }
+
+        return records.stream()
+                .findFirst()
+                .map(record -> record.entrySet()
+                        .stream()
+                        .collect(Collectors.toUnmodifiableMap(Map.Entry::getKey, e -> String.valueOf(e.getValue()))))
+                .orElseThrow(() -> new OpenbravoClientException("No data in response [" + jsonResponse + "]"));
+    }
+
+    /**
+     * Walk <code>{"response" : {...}}</code> token by token. Every element of <code>response.data[]</code>,
+     * or <code>response.data</code> itself when it is a single record, is passed to consumer as soon as it is parsed,
+     * nothing is buffered. Data is skipped when <code>response.status</code> comes first and is not 0.
+     * When status comes after data, records have already been passed, callers check the returned status and
+     * throw {@link OpenbravoClientException}, so consumers have to discard what they received when the call fails.
+     * Other attributes of <code>response</code> are returned.
+     *
+     * @param reader
+     * @param consumer
+     * @return attributes of response object, without data
+     * @throws IOException
+     * @throws JSONException
+     */
+    protected Map<String, Object> readResponse(@Nonnull JsonReader reader, @Nonnull Consumer<Map<String, Object>> consumer) throws IOException, JSONException {
+        final Map<String, Object> jsonResponse = new HashMap<>();
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!"response".equals(reader.nextName())) {
+                reader.skipValue();
+                continue;
+            }
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                final String name = reader.nextName();
+                final JsonToken token = reader.peek();
+                if ("data".equals(name) && (token == JsonToken.BEGIN_ARRAY || token == JsonToken.BEGIN_OBJECT)) {
+                    if (jsonResponse.containsKey("status") && getResponseStatus(jsonResponse) != 0) {
+                        reader.skipValue();
+                        continue;
+                    }
+
+                    if (token == JsonToken.BEGIN_OBJECT) {
+                        consumer.accept(readRecord(reader));
+                        continue;
+                    }
+
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        consumer.accept(readRecord(reader));
+                    }
+                    reader.endArray();
+                } else {
+                    jsonResponse.put(name, readValue(reader));
+                }
+            }
+            reader.endObject();
+        }
+        reader.endObject();
+
+        return jsonResponse;
+    }
+
+    protected Map<String, Object> readRecord(@Nonnull JsonReader reader) throws IOException, JSONException {
+        final Map<String, Object> record = new HashMap<>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            record.put(reader.nextName(), readValue(reader));
+        }
+        reader.endObject();
+        return record;
+    }
+
+    /**
+     * Read next value using the same types as {@link JSONObject#get(String)}
+     *
+     * @param reader
+     * @return
+     * @throws IOException
+     * @throws JSONException
+     */
+    protected Object readValue(@Nonnull JsonReader reader) throws IOException, JSONException {
+        switch (reader.peek()) {
+            case STRING:
+                return reader.nextString();
+            case NUMBER:
+                return toNumber(reader.nextString());
+            case BOOLEAN:
+                return reader.nextBoolean();
+            case BEGIN_OBJECT: {
+                final JSONObject jsonObject = new JSONObject();
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    jsonObject.put(reader.nextName(), readValue(reader));
+                }
+                reader.endObject();
+                return jsonObject;
+            }
+            case BEGIN_ARRAY: {
+                final JSONArray jsonArray = new JSONArray();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    jsonArray.put(readValue(reader));
+                }
+                reader.endArray();
+                return jsonArray;
+            }
+            case NULL:
+                reader.nextNull();
+                return JSONObject.NULL;
+            default:
+                reader.skipValue();
+                return JSONObject.NULL;
+        }
+    }
+
+    protected Object toNumber(String value) {
+        try {
+            if (value.indexOf('.') >= 0 || value.indexOf('e') >= 0 || value.indexOf('E') >= 0) {
+                return Double.valueOf(value);
+            }
+
+            final long longValue = Long.parseLong(value);
+            if (longValue == (int) longValue) {
+                return (int) longValue;
+            }
+            return longValue;
+        } catch (NumberFormatException e) {
+            return value;
+        }
+    }
+
+    protected int getResponseStatus(@Nonnull Map<String, Object> jsonResponse) {
+        final Object status = jsonResponse.get("status");
+        if (status instanceof Number) {
+            return ((Number) status).intValue();
+        }
+
+        try {
+            return Integer.parseInt(String.valueOf(status));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
     protected String formatArguments(String condition, Object[] arguments) {
         final Pattern p = Pattern.compile("\\?");
         final Matcher m = p.matcher(condition);
@@ -376,7 +591,7 @@ public class OpenbravoService {
                     args.add(argument);
                 } else if (argument instanceof Date) {
                     replacement = "'%s'";
-                    args.add(DF.format(argument));
+                    args.add(new SimpleDateFormat(DATE_FORMAT).format(argument));
                 } else {
                     replacement = "'%s'";
                     args.add(String.valueOf(argument).replaceAll(",", "''"));
@@ -395,10 +610,6 @@ public class OpenbravoService {
         LogUtil.info(getClass().getName(), "count : baseUrl [" + baseUrl + "] tableEntity [" + tableEntity + "] username [" + username + "]");
 
         try {
-            final RestService restService = RestService.getInstance();
-            restService.setIgnoreCertificate(ignoreCertificateError);
-            restService.setDebug(isDebug);
-
             final StringBuilder url = new StringBuilder()
                     .append(baseUrl)
                     .append("/ws/com.kinnarastudio.openbravo.kecakadapter.RecordCount/")
@@ -413,40 +624,61 @@ public class OpenbravoService {
                 addUrlParameter(url, "_where", URLEncoder.encode(where));
             }
 
-            final Map<String, String> headers = Collections.singletonMap("Authorization", restService.getBasicAuthenticationHeader(username, password));
-            final HttpResponse response = restService.doGet(url.toString(), headers);
-            ;
-
-            try (BufferedReader br = new BufferedReader(new InputStreamReader(response.getEntity().getContent()))) {
-                final String responsePayload = br.lines().collect(Collectors.joining());
-
-                if (isDebug) {
-                    LogUtil.info(getClass().getName(), "count : responsePayload [" + responsePayload + "]");
-                }
-
-                final int statusCode = restService.getResponseStatus(response);
-                if (restService.getStatusGroupCode(statusCode) != 200) {
+            final Map<String, String> headers = Collections.singletonMap("Authorization", getBasicAuthenticationHeader(username, password));
+            try (CloseableHttpResponse response = execute(baseUrl, new HttpGet(url.toString()), headers)) {
+                final int statusCode = getResponseStatus(response);
+                if (getStatusGroupCode(statusCode) != 200) {
                     throw new com.kinnarastudio.obclient.exceptions.RestClientException("Response code [" + statusCode + "] is not 200 (Success) url [" + url + "]");
                 } else if (statusCode != 200) {
                     LogUtil.warn(getClass().getName(), "Response code [" + statusCode + "] is considered as success");
                 }
 
-                if (!restService.isJsonResponse(response)) {
+                if (!isJsonResponse(response)) {
                     throw new com.kinnarastudio.obclient.exceptions.RestClientException("Content type is not JSON");
                 }
 
-                final JSONObject jsonResponse = new JSONObject(responsePayload)
-                        .getJSONObject("response");
+                final Map<String, Object> jsonResponse;
+                try (JsonReader reader = new JsonReader(new InputStreamReader(response.getEntity().getContent(), StandardCharsets.UTF_8))) {
+                    jsonResponse = readResponse(reader, record -> {
+                    });
+                }
 
-                return jsonResponse.getInt("count");
+                if (isDebug) {
+                    LogUtil.info(getClass().getName(), "count : response [" + jsonResponse + "]");
+                }
+
+                final Object count = jsonResponse.get("count");
+                if (count instanceof Number) {
+                    return ((Number) count).intValue();
+                }
+
+                try {
+                    return Integer.parseInt(String.valueOf(count));
+                } catch (NumberFormatException e) {
+                    throw new OpenbravoClientException("Invalid count [" + count + "] in response [" + jsonResponse + "]");
+                }
             }
         } catch (com.kinnarastudio.obclient.exceptions.RestClientException | JSONException | IOException e) {
             throw new OpenbravoClientException(e);
         }
     }
 
-    public synchronized Map<String, Object>[] post(@Nonnull String baseUrl, @Nonnull String tableEntity, @Nonnull String username, @Nonnull String password, @Nonnull Map<String, Object>[] rows) throws OpenbravoClientException {
-        LogUtil.info(getClass().getName(), "post : baseUrl [" + baseUrl + "] tableEntity [" + tableEntity + "] username [" + username + "]");
+    /**
+     * Post rows to Openbravo. Rows are sent in chunks of {@link Builder#setBatchSize(int)} records per request,
+     * when Openbravo rejects a chunk with validation errors the rows of that chunk are posted one by one so that
+     * result and error can be mapped back to their input index. Any other error fails every row of the chunk
+     * without sending it again, since the chunk may have been stored.
+     *
+     * @param baseUrl
+     * @param tableEntity
+     * @param username
+     * @param password
+     * @param rows
+     * @return posted records, same length and order as rows. Empty map for failed rows when not short circuit
+     * @throws OpenbravoClientException
+     */
+    public Map<String, Object>[] post(@Nonnull String baseUrl, @Nonnull String tableEntity, @Nonnull String username, @Nonnull String password, @Nonnull Map<String, Object>[] rows) throws OpenbravoClientException {
+        LogUtil.info(getClass().getName(), "post : baseUrl [" + baseUrl + "] tableEntity [" + tableEntity + "] username [" + username + "] batchSize [" + batchSize + "]");
 
         if (isDebug) {
             for (Map<String, Object> row : rows) {
@@ -454,121 +686,230 @@ public class OpenbravoService {
             }
         }
 
-        try {
-            final RestService restService = RestService.getInstance();
-            restService.setIgnoreCertificate(ignoreCertificateError);
-            restService.setDebug(isDebug);
+        final String url = baseUrl + "/org.openbravo.service.json.jsonrest/" + tableEntity;
+        final Map<String, String> headers = Collections.singletonMap("Authorization", getBasicAuthenticationHeader(username, password));
 
-            final StringBuilder url = new StringBuilder().append(baseUrl).append("/org.openbravo.service.json.jsonrest/").append(tableEntity);
-            final Map<String, String> headers = Collections.singletonMap("Authorization", restService.getBasicAuthenticationHeader(username, password));
+        final Map<String, Object>[] result = new Map[rows.length];
+        try {
+            for (int from = 0; from < rows.length; from += batchSize) {
+                final int to = Math.min(rows.length, from + batchSize);
+                final Map<String, Object>[] chunk = Arrays.copyOfRange(rows, from, to);
+
+                try {
+                    final Map<String, Object>[] chunkResult = post(baseUrl, url, headers, chunk);
+                    System.arraycopy(chunkResult, 0, result, from, chunkResult.length);
+                } catch (OpenbravoClientException e) {
+                    // outcome is unknown, rows may have been stored, do not send them again
+                    for (int i = from; i < to; i++) {
+                        result[i] = onPostError(i, e);
+                    }
+                } catch (OpenbravoCreateRecordException e) {
+                    if (chunk.length == 1) {
+                        result[from] = onPostError(from, e);
+                        continue;
+                    }
 
-            cutCircuit = false;
+                    LogUtil.warn(getClass().getName(), "post : chunk [" + from + ".." + (to - 1) + "] rejected, retrying row by row : " + e.getMessage());
 
-            final Map[] result = Arrays.stream(rows)
-                    .map(row -> {
-                        if (cutCircuit) return null;
+                    for (int i = from; i < to; i++) {
                         try {
-                            final JSONObject jsonBody = new JSONObject() {{
-                                put("data", row.entrySet()
-                                        .stream()
-                                        .collect(JSONCollectors.toJSONObject(Map.Entry::getKey, Map.Entry::getValue)));
-                            }};
-
-                            final HttpResponse response = restService.doPost(url.toString(), headers, jsonBody);
-
-                            final int statusCode = restService.getResponseStatus(response);
-                            if (restService.getStatusGroupCode(statusCode) != 200) {
-                                throw new com.kinnarastudio.obclient.exceptions.RestClientException("Response code [" + statusCode + "] is not 200 (Success) url [" + url + "]");
-                            } else if (statusCode != 200) {
-                                LogUtil.warn(getClass().getName(), "Response code [" + statusCode + "] is considered as success");
-                            }
-
-                            if (!restService.isJsonResponse(response)) {
-                                throw new com.kinnarastudio.obclient.exceptions.RestClientException("Content type is not JSON");
-                            }
-
-                            try (BufferedReader br = new BufferedReader(new InputStreamReader(response.getEntity().getContent()))) {
-                                final String responsePayload = br.lines().collect(Collectors.joining());
-                                if (isDebug) {
-                                    LogUtil.info(getClass().getName(), "post : responsePayload [" + responsePayload + "]");
-                                }
-                                final JSONObject jsonResponse = new JSONObject(responsePayload)
-                                        .getJSONObject("response");
-
-                                final int status = jsonResponse.getInt("status");
-                                if (status != 0) {
-                                    if (status == -4) {
-                                        final JSONObject jsonErrors = jsonResponse.getJSONObject("errors");
-                                        final Map<String, String> errors = JSONStream.of(jsonErrors, Try.onBiFunction(JSONObject::getString))
-                                                .collect(Collectors.toUnmodifiableMap(JSONObjectEntry::getKey, JSONObjectEntry::getValue));
-                                        throw new OpenbravoCreateRecordException(errors);
-                                    } else if (status == -1) {
-                                        throw new OpenbravoClientException(jsonResponse.getJSONObject("error").getString("message"));
-                                    } else {
-                                        throw new OpenbravoClientException(responsePayload);
-                                    }
-                                }
-
-                                final JSONArray jsonData = jsonResponse.getJSONArray("data");
-                                final Map<String, Object> data = JSONStream.of(jsonData, Try.onBiFunction(JSONArray::getJSONObject))
-                                        .findFirst()
-                                        .stream()
-                                        .flatMap(json -> JSONStream.of(json, Try.onBiFunction(JSONObject::get)))
-                                        .collect(Collectors.toUnmodifiableMap(JSONObjectEntry::getKey, JSONObjectEntry::getValue));
-
-                                if (isDebug) {
-                                    LogUtil.info(getClass().getName(), "post : data result posted [" + data + "]");
-                                }
-                                return data;
-                            }
-                        } catch (OpenbravoClientException | com.kinnarastudio.obclient.exceptions.RestClientException | IOException | JSONException |
-                                 OpenbravoCreateRecordException e) {
-                            LogUtil.error(getClass().getName(), e, e.getMessage());
-                            if (shortCircuit) {
-                                cutCircuit = true;
-                                cutCircuitCause = e;
-                                return null;
-                            }
-
-                            return Collections.<String, Object>emptyMap();
+                            result[i] = post(baseUrl, url, headers, new Map[]{rows[i]})[0];
+                        } catch (OpenbravoClientException | OpenbravoCreateRecordException rowException) {
+                            result[i] = onPostError(i, rowException);
                         }
-                    })
-                    .filter(Objects::nonNull)
-                    .toArray(Map[]::new);
-
-            if (cutCircuit) {
-                throw cutCircuitCause instanceof OpenbravoClientException
-                        ? (OpenbravoClientException) cutCircuitCause
-                        : new OpenbravoClientException(cutCircuitCause);
+                    }
+                }
+            }
+        } finally {
+            EntityChangeNotifier.notifyChange(baseUrl, tableEntity);
+        }
+
+        return result;
+    }
+
+    /**
+     * Send one POST request containing all rows
+     *
+     * @return posted records in the same order as rows
+     */
+    protected Map<String, Object>[] post(@Nonnull String baseUrl, @Nonnull String url, @Nonnull Map<String, String> headers, @Nonnull Map<String, Object>[] rows) throws OpenbravoClientException, OpenbravoCreateRecordException {
+        try {
+            final JSONArray jsonRows = Arrays.stream(rows)
+                    .map(row -> row.entrySet()
+                            .stream()
+                            .collect(JSONCollectors.toJSONObject(Map.Entry::getKey, Map.Entry::getValue)))
+                    .collect(Collector.of(JSONArray::new, JSONArray::put, JSONArray::put));
+
+            final JSONObject jsonBody = new JSONObject();
+            jsonBody.put("data", rows.length == 1 ? jsonRows.getJSONObject(0) : jsonRows);
+
+            final HttpPost request = new HttpPost(url);
+            request.setEntity(new StringEntity(jsonBody.toString(), ContentType.APPLICATION_JSON));
+            try (CloseableHttpResponse response = execute(baseUrl, request, headers)) {
+                final int statusCode = getResponseStatus(response);
+                if (getStatusGroupCode(statusCode) != 200) {
+                    throw new com.kinnarastudio.obclient.exceptions.RestClientException("Response code [" + statusCode + "] is not 200 (Success) url [" + url + "]");
+                } else if (statusCode != 200) {
+                    LogUtil.warn(getClass().getName(), "Response code [" + statusCode + "] is considered as success");
+                }
+
+                if (!isJsonResponse(response)) {
+                    throw new com.kinnarastudio.obclient.exceptions.RestClientException("Content type is not JSON");
+                }
+
+                // posted records, discarded when status is not 0
+                final List<Map<String, Object>> records = new ArrayList<>(rows.length);
+                final Map<String, Object> jsonResponse;
+                try (JsonReader reader = new JsonReader(new InputStreamReader(response.getEntity().getContent(), StandardCharsets.UTF_8))) {
+                    jsonResponse = readResponse(reader, records::add);
+                }
+
+                if (isDebug) {
+                    LogUtil.info(getClass().getName(), "post : response [" + jsonResponse + "]");
+                }
+
+                final int status = getResponseStatus(jsonResponse);
+                if (status != 0) {
+                    final Object errors = jsonResponse.get("errors");
+                    final Object error = jsonResponse.get("error");
+                    if (status == -4 && errors instanceof JSONObject) {
+                        throw new OpenbravoCreateRecordException(JSONStream.of((JSONObject) errors, Try.onBiFunction(JSONObject::getString))
+                                .collect(Collectors.toUnmodifiableMap(JSONObjectEntry::getKey, JSONObjectEntry::getValue)));
+                    } else if (status == -1 && error instanceof JSONObject) {
+                        throw new OpenbravoClientException(((JSONObject) error).optString("message", String.valueOf(error)));
+                    } else {
+                        throw new OpenbravoClientException(String.valueOf(jsonResponse));
+                    }
+                }
+
+                if (records.size() != rows.length) {
+                    throw new OpenbravoClientException("Request length [" + rows.length + "] and response length [" + records.size() + "] are different");
+                }
+
+                if (isDebug) {
+                    LogUtil.info(getClass().getName(), "post : data result posted [" + records + "]");
+                }
+                return records.toArray(new Map[0]);
             }
+        } catch (com.kinnarastudio.obclient.exceptions.RestClientException | IOException | JSONException e) {
+            throw new OpenbravoClientException(e);
+        }
+    }
 
-            if (rows.length != result.length)
-                throw new OpenbravoClientException("Request length [" + rows.length + "] and response length [" + result.length + "] are different");
+    /**
+     * Handle error of a single row
+     *
+     * @param index row index
+     * @param e     cause
+     * @return empty map as row result
+     * @throws OpenbravoClientException when short circuit
+     */
+    protected Map<String, Object> onPostError(int index, Exception e) throws OpenbravoClientException {
+        LogUtil.error(getClass().getName(), e, "post : row [" + index + "] " + e.getMessage());
+        if (shortCircuit) {
+            throw e instanceof OpenbravoClientException
+                    ? (OpenbravoClientException) e
+                    : new OpenbravoClientException(e);
+        }
 
-            return (Map<String, Object>[]) result;
-        } catch (com.kinnarastudio.obclient.exceptions.RestClientException e) {
+        return Collections.emptyMap();
+    }
+
+    /**
+     * Execute request using shared pooled client
+     *
+     * @param baseUrl Openbravo base URL
+     * @param request HTTP request
+     * @param headers request headers
+     * @return response, must be closed by caller to release the connection
+     * @throws OpenbravoClientException
+     */
+    protected CloseableHttpResponse execute(@Nonnull String baseUrl, @Nonnull HttpRequestBase request, @Nonnull Map<String, String> headers) throws OpenbravoClientException {
+        headers.forEach(request::setHeader);
+
+        if (isDebug) {
+            LogUtil.info(getClass().getName(), "execute : method [" + request.getMethod() + "] url [" + request.getURI() + "]");
+        }
+
+        try {
+            return HttpClientPool.getHttpClient(baseUrl, ignoreCertificateError).execute(request);
+        } catch (IOException e) {
             throw new OpenbravoClientException(e);
         }
     }
 
+    protected String getBasicAuthenticationHeader(String username, String password) {
+        return "Basic " + Base64.getEncoder().encodeToString(String.format("%s:%s", username, password).getBytes());
+    }
+
+    protected int getResponseStatus(@Nonnull HttpResponse response) throws OpenbravoClientException {
+        return Optional.of(response)
+                .map(HttpResponse::getStatusLine)
+                .map(StatusLine::getStatusCode)
+                .orElseThrow(() -> new OpenbravoClientException("Error getting status code"));
+    }
+
+    /**
+     * Returns 200ish, 300ish, 400ish, or 500ish
+     *
+     * @param status
+     * @return
+     */
+    protected int getStatusGroupCode(int status) {
+        return status - (status % 100);
+    }
+
+    protected boolean isJsonResponse(@Nonnull HttpResponse response) {
+        return Optional.of(response)
+                .map(HttpResponse::getEntity)
+                .map(HttpEntity::getContentType)
+                .map(Header::getValue)
+                .map(s -> s.contains("json"))
+                .orElse(false);
+    }
+
     protected void addUrlParameter(@Nonnull final StringBuilder url, String parameterName, String parameterValue) {
         url.append(String.format("%s%s=%s", (url.toString().contains("?") ? "&" : "?"), parameterName, parameterValue));
     }
 
-    public void setIgnoreCertificateError(boolean ignoreCertificateError) {
-        this.ignoreCertificateError = ignoreCertificateError;
+    public boolean isIgnoreCertificateError() {
+        return ignoreCertificateError;
+    }
+
+    public boolean isDebug() {
+        return isDebug;
+    }
+
+    public boolean isShortCircuit() {
+        return shortCircuit;
     }
 
-    public void setDebug(boolean debug) {
-        isDebug = debug;
+    public boolean isNoFilterActive() {
+        return noFilterActive;
     }
 
-    public void setShortCircuit(boolean shortCircuit) {
-        this.shortCircuit = shortCircuit;
+    public int getBatchSize() {
+        return batchSize;
     }
 
-    public void setNoFilterActive(boolean noFilterActive) {
-        this.noFilterActive = noFilterActive;
+    /**
+     * Convert column names to <code>_selectedProperties</code>. Reference columns such as
+     * <code>businessPartner$_identifier</code> are reduced to the property name, system properties
+     * (<code>_identifier</code>, <code>_entityName</code>) are always returned by Openbravo and are skipped.
+     *
+     * @param columnNames
+     * @return distinct property names
+     */
+    @Nonnull
+    public static String[] toSelectedProperties(@Nullable String... columnNames) {
+        return Optional.ofNullable(columnNames)
+                .stream()
+                .flatMap(Arrays::stream)
+                .filter(Objects::nonNull)
+                .map(s -> s.replaceAll("\\$.*$", "").trim())
+                .filter(s -> !s.isEmpty() && !s.startsWith("_"))
+                .distinct()
+                .toArray(String[]::new);
     }
 
     protected String getFilterWhereCondition(Map<String, String> filter) {
@@ -608,4 +949,54 @@ public class OpenbravoService {
                 .toArray(String[]::new);
     }
 
+    /**
+     * Builder for {@link OpenbravoService}
+     */
+    public static class Builder {
+        private boolean ignoreCertificateError = false;
+        private boolean isDebug = false;
+        private boolean shortCircuit = false;
+        private boolean noFilterActive = false;
+        private int batchSize = 1;
+
+        private Builder() {
+        }
+
+        public Builder setIgnoreCertificateError(boolean ignoreCertificateError) {
+            this.ignoreCertificateError = ignoreCertificateError;
+            return this;
+        }
+
+        public Builder setDebug(boolean debug) {
+            this.isDebug = debug;
+            return this;
+        }
+
+        /**
+         * @param shortCircuit stop posting the remaining rows and throw the error as soon as one row fails
+         * @return this builder
+         */
+        public Builder setShortCircuit(boolean shortCircuit) {
+            this.shortCircuit = shortCircuit;
+            return this;
+        }
+
+        public Builder setNoFilterActive(boolean noFilterActive) {
+            this.noFilterActive = noFilterActive;
+            return this;
+        }
+
+        /**
+         * @param batchSize number of records sent in one POST request, default 1
+         * @return this builder
+         */
+        public Builder setBatchSize(int batchSize) {
+            this.batchSize = Math.max(1, batchSize);
+            return this;
+        }
+
+        public OpenbravoService build() {
+            return new OpenbravoService(this);
+        }
+    }
 }
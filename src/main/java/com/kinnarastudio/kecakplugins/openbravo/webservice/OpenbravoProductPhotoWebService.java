@@ -1,42 +1,63 @@
 package com.kinnarastudio.kecakplugins.openbravo.webservice;
 
+import com.kinnarastudio.kecakplugins.openbravo.commons.EntityChangeNotifier;
+import com.kinnarastudio.kecakplugins.openbravo.commons.HttpClientPool;
+import com.kinnarastudio.kecakplugins.openbravo.commons.PluginDefaultPropertiesCache;
+import com.kinnarastudio.obclient.exceptions.OpenbravoClientException;
 import com.kinnarastudio.obclient.exceptions.RestClientException;
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.NameValuePair;
-import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpUriRequest;
-import org.apache.http.conn.ssl.NoopHostnameVerifier;
-import org.apache.http.impl.client.HttpClientBuilder;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.ssl.SSLContextBuilder;
-import org.joget.apps.app.dao.PluginDefaultPropertiesDao;
-import org.joget.apps.app.model.AppDefinition;
-import org.joget.apps.app.model.PluginDefaultProperties;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
 import org.joget.apps.app.service.AppUtil;
-import org.joget.commons.util.StringUtil;
+import org.joget.commons.util.LogUtil;
 import org.joget.plugin.base.DefaultApplicationPlugin;
 import org.joget.plugin.base.PluginManager;
 import org.joget.plugin.base.PluginWebSupport;
-import org.joget.plugin.property.service.PropertyUtil;
 import org.kecak.apps.exception.ApiException;
 
-import javax.net.ssl.SSLContext;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.security.KeyManagementException;
-import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 
 public class OpenbravoProductPhotoWebService extends DefaultApplicationPlugin implements PluginWebSupport {
     public final static String LABEL = "Openbravo Product Photo";
-    public final static int BUFFER_LENGTH = 4096;
+    public final static int MAX_DIMENSION = 2048;
+    public final static Set<String> SUPPORTED_FORMATS = Set.of("png", "jpeg", "jpg", "gif");
+
+    /**
+     * Comma separated variant sizes in pixel, requested dimensions are snapped up to the nearest size
+     * so only a few variants of every image are generated and cached
+     */
+    public final static String PROPERTY_SIZES = "openbravo.images.sizes";
+    public final static String DEFAULT_SIZES = "64,128,256,512,1024";
+
+    private final static int[] SIZES = getSizes(System.getProperty(PROPERTY_SIZES, DEFAULT_SIZES));
+
+    /**
+     * Variants being created by variant key, concurrent requests for the same variant wait for the first one
+     */
+    private final static Map<String, CompletableFuture<ProductImageCache.Image>> pendingVariants = new ConcurrentHashMap<>();
 
     @Override
     public String getName() {
@@ -70,39 +91,50 @@ public class OpenbravoProductPhotoWebService extends DefaultApplicationPlugin im
             }
 
             final String imageId = getRequiredParameter(servletRequest, "imageId");
-            final String baseUrl = getPropertyString("baseUrl");
+
+            // resolve configuration once per request
+            final Map<String, Object> properties = getProperties();
+            final String baseUrl = getPropertyString(properties, "baseUrl");
             if (baseUrl.isEmpty()) {
                 throw new ApiException(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Missing service configuration");
             }
-            final String username = getPropertyString("username");
-            final String password = getPropertyString("password");
-            final boolean ignoreCertificate = "true".equalsIgnoreCase(getPropertyString("ignoreCertificate"));
-            final String urlString = baseUrl + "/utility/ShowImage?id=" + imageId;
+            final String username = getPropertyString(properties, "username");
+            final String password = getPropertyString(properties, "password");
+            final boolean ignoreCertificate = "true".equalsIgnoreCase(getPropertyString(properties, "ignoreCertificate"));
 
-            final HttpClient client = getHttpClient(ignoreCertificate);
-            final HttpUriRequest request = new HttpGet(urlString);
-            request.setHeader("Authorization", getAuthenticationHeader(username, password));
+            final ProductImageCache imageCache = ProductImageCache.getInstance();
+            final String cacheKey = EntityChangeNotifier.normalizeBaseUrl(baseUrl) + "|" + imageId;
 
-            final HttpResponse response = client.execute(request);
+            final int width = getDimensionParameter(servletRequest, "width");
+            final int height = getDimensionParameter(servletRequest, "height");
+            final String format = getFormatParameter(servletRequest);
+            final boolean isVariant = width > 0 || height > 0 || !format.isEmpty();
+            final String variantKey = cacheKey + "|" + width + "x" + height + "|" + format;
 
-            final Optional<HttpEntity> optEntity = Optional.of(response)
-                    .map(HttpResponse::getEntity);
+            ProductImageCache.Image image = isVariant ? imageCache.get(variantKey) : null;
+            if (image == null) {
+                ProductImageCache.Image original = imageCache.get(cacheKey);
+                if (original == null) {
+                    original = fetchImage(baseUrl, username, password, ignoreCertificate, imageId, cacheKey);
+                }
 
-            optEntity.map(HttpEntity::getContentType)
-                    .map(NameValuePair::getValue)
-                    .ifPresent(servletResponse::setContentType);
+                image = isVariant ? getVariant(original, width, height, format, variantKey) : original;
+            }
 
-            final HttpEntity entity = optEntity.orElseThrow(() -> new ApiException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Http entity is not available"));
+            servletResponse.setHeader("ETag", image.getETag());
+            if (image.getLastModified() >= 0) {
+                servletResponse.setDateHeader("Last-Modified", image.getLastModified());
+            }
+            servletResponse.setHeader("Cache-Control", "private, max-age=" + image.getMaxAge());
 
-            try (InputStream inputStream = entity.getContent()) {
-                final OutputStream outputStream = servletResponse.getOutputStream();
-                byte[] buffer = new byte[BUFFER_LENGTH];
-                int bytesRead;
-                while ((bytesRead = inputStream.read(buffer)) >= 0) {
-                    outputStream.write(buffer, 0, bytesRead);
-                }
-                outputStream.flush();
+            if (isNotModified(servletRequest, image)) {
+                servletResponse.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return;
             }
+
+            Optional.ofNullable(image.getContentType()).ifPresent(servletResponse::setContentType);
+            servletResponse.setHeader("Content-Length", String.valueOf(image.getLength()));
+            image.writeTo(servletResponse.getOutputStream());
         } catch (ApiException e) {
             servletResponse.sendError(e.getErrorCode(), e.getMessage());
         } catch (RestClientException e) {
@@ -132,38 +164,263 @@ public class OpenbravoProductPhotoWebService extends DefaultApplicationPlugin im
 
     }
 
-    protected HttpClient getHttpClient(boolean ignoreCertificate) throws RestClientException {
+    /**
+     * Load image from Openbravo and put it in {@link ProductImageCache}
+     */
+    protected ProductImageCache.Image fetchImage(String baseUrl, String username, String password, boolean ignoreCertificate, String imageId, String cacheKey) throws RestClientException, ApiException, IOException {
+        final String urlString = baseUrl + "/utility/ShowImage?id=" + imageId;
+
+        final CloseableHttpClient client = getHttpClient(baseUrl, ignoreCertificate);
+        final HttpUriRequest request = new HttpGet(urlString);
+        request.setHeader("Authorization", getAuthenticationHeader(username, password));
+
+        try (CloseableHttpResponse response = client.execute(request)) {
+            final int statusCode = response.getStatusLine().getStatusCode();
+            final HttpEntity entity = Optional.of(response)
+                    .map(HttpResponse::getEntity)
+                    .orElseThrow(() -> new ApiException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Http entity is not available"));
+
+            if (statusCode != HttpServletResponse.SC_OK) {
+                EntityUtils.consumeQuietly(entity);
+                throw new ApiException(statusCode, "Error loading image [" + imageId + "]");
+            }
+
+            final String contentType = Optional.of(entity)
+                    .map(HttpEntity::getContentType)
+                    .map(NameValuePair::getValue)
+                    .orElse(null);
+
+            // Last-Modified is only sent when Openbravo gives one, fetch time says nothing about the image
+            final long lastModified = Optional.ofNullable(response.getFirstHeader("Last-Modified"))
+                    .map(Header::getValue)
+                    .map(DateUtils::parseDate)
+                    .map(Date::getTime)
+                    .orElse(-1L);
+
+            return ProductImageCache.getInstance().put(cacheKey, contentType, lastModified, EntityUtils.toByteArray(entity));
+        }
+    }
+
+    /**
+     * Create variant once, requests for a variant that is being created wait for it instead of scaling
+     * the same image again
+     *
+     * @see #createVariant(ProductImageCache.Image, int, int, String, String)
+     */
+    protected ProductImageCache.Image getVariant(ProductImageCache.Image original, int width, int height, String format, String variantKey) throws IOException {
+        final CompletableFuture<ProductImageCache.Image> created = new CompletableFuture<>();
+        final CompletableFuture<ProductImageCache.Image> pending = pendingVariants.putIfAbsent(variantKey, created);
+        if (pending != null) {
+            try {
+                return pending.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            } catch (ExecutionException e) {
+                final Throwable cause = e.getCause();
+                throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+            }
+        }
+
+        try {
+            // may have been created between the cache lookup and registering this request
+            final ProductImageCache.Image cached = ProductImageCache.getInstance().get(variantKey);
+            final ProductImageCache.Image result = cached != null ? cached : createVariant(original, width, height, format, variantKey);
+            created.complete(result);
+            return result;
+        } catch (IOException | RuntimeException e) {
+            created.completeExceptionally(e);
+            throw e;
+        } finally {
+            pendingVariants.remove(variantKey, created);
+        }
+    }
+
+    /**
+     * Scale image to fit in width x height keeping its aspect ratio, never enlarge it.
+     * The result is cached under its own key, original is returned when it cannot be decoded.
+     *
+     * @param original   original image
+     * @param width      max width, 0 to only limit by height
+     * @param height     max height, 0 to only limit by width
+     * @param format     target format name, empty to keep original format
+     * @param variantKey cache key of the variant
+     * @return variant image
+     */
+    protected ProductImageCache.Image createVariant(ProductImageCache.Image original, int width, int height, String format, String variantKey) throws IOException {
+        final ByteArrayOutputStream originalContent = new ByteArrayOutputStream((int) original.getLength());
+        original.writeTo(originalContent);
+
+        final String formatName;
+        final BufferedImage source;
+        try (ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(originalContent.toByteArray()))) {
+            final Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                LogUtil.warn(getClassName(), "Unsupported image format [" + original.getContentType() + "], serving original");
+                return original;
+            }
+
+            final ImageReader reader = readers.next();
+            try {
+                reader.setInput(input);
+                source = reader.read(0);
+                formatName = format.isEmpty() ? reader.getFormatName().toLowerCase() : format;
+            } finally {
+                reader.dispose();
+            }
+        }
+
+        final double scale = Math.min(1.0, Math.min(
+                width > 0 ? (double) width / source.getWidth() : Double.MAX_VALUE,
+                height > 0 ? (double) height / source.getHeight() : Double.MAX_VALUE));
+        final int targetWidth = Math.max(1, (int) Math.round(source.getWidth() * scale));
+        final int targetHeight = Math.max(1, (int) Math.round(source.getHeight() * scale));
+
+        // JPEG does not support transparency
+        final boolean isOpaque = "jpeg".equals(formatName) || "jpg".equals(formatName);
+        final BufferedImage target = new BufferedImage(targetWidth, targetHeight, isOpaque ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+        final Graphics2D graphics = target.createGraphics();
+        try {
+            if (isOpaque) {
+                graphics.setColor(Color.WHITE);
+                graphics.fillRect(0, 0, targetWidth, targetHeight);
+            }
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            graphics.drawImage(source, 0, 0, targetWidth, targetHeight, null);
+        } finally {
+            graphics.dispose();
+        }
+
+        final ByteArrayOutputStream variantContent = new ByteArrayOutputStream();
+        if (!ImageIO.write(target, formatName, variantContent)) {
+            LogUtil.warn(getClassName(), "No writer for image format [" + formatName + "], serving original");
+            return original;
+        }
+
+        return ProductImageCache.getInstance().put(variantKey, "image/" + ("jpg".equals(formatName) ? "jpeg" : formatName), original.getLastModified(), variantContent.toByteArray());
+    }
+
+    /**
+     * @return dimension in pixel snapped up to the nearest {@value #PROPERTY_SIZES} size, capped at the
+     * largest size. 0 when not supplied
+     */
+    protected int getDimensionParameter(HttpServletRequest request, String parameterName) throws ApiException {
+        final String value = Optional.of(parameterName)
+                .map(request::getParameter)
+                .map(String::trim)
+                .orElse("");
+        if (value.isEmpty()) {
+            return 0;
+        }
+
         try {
-            if (ignoreCertificate) {
-                SSLContext sslContext = new SSLContextBuilder()
-                        .loadTrustMaterial(null, (certificate, authType) -> true).build();
-                return HttpClients.custom().setSSLContext(sslContext)
-                        .setSSLHostnameVerifier(new NoopHostnameVerifier())
-                        .build();
-            } else {
-                return HttpClientBuilder.create().build();
+            final int dimension = Integer.parseInt(value);
+            if (dimension < 0 || dimension > MAX_DIMENSION) {
+                throw new ApiException(HttpServletResponse.SC_BAD_REQUEST, "Parameter [" + parameterName + "] must be between 0 and " + MAX_DIMENSION);
+            }
+
+            if (dimension == 0) {
+                return 0;
             }
-        } catch (NoSuchAlgorithmException | KeyStoreException | KeyManagementException e) {
+
+            return Arrays.stream(SIZES)
+                    .filter(size -> size >= dimension)
+                    .findFirst()
+                    .orElse(SIZES[SIZES.length - 1]);
+        } catch (NumberFormatException e) {
+            throw new ApiException(HttpServletResponse.SC_BAD_REQUEST, "Parameter [" + parameterName + "] is not a number");
+        }
+    }
+
+    /**
+     * @return lower case format name, "jpg" is returned as "jpeg". Empty when not supplied
+     */
+    protected String getFormatParameter(HttpServletRequest request) throws ApiException {
+        final String format = Optional.of("format")
+                .map(request::getParameter)
+                .map(String::trim)
+                .map(String::toLowerCase)
+                .orElse("");
+        if (!format.isEmpty() && !SUPPORTED_FORMATS.contains(format)) {
+            throw new ApiException(HttpServletResponse.SC_BAD_REQUEST, "Format [" + format + "] is not supported");
+        }
+        return "jpg".equals(format) ? "jpeg" : format;
+    }
+
+    /**
+     * @param value comma separated sizes
+     * @return valid sizes in ascending order, {@value #DEFAULT_SIZES} when none is valid
+     */
+    private static int[] getSizes(String value) {
+        final int[] sizes = Arrays.stream(value.split(","))
+                .map(String::trim)
+                .filter(s -> s.matches("\\d{1,9}"))
+                .mapToInt(Integer::parseInt)
+                .filter(size -> size > 0 && size <= MAX_DIMENSION)
+                .distinct()
+                .sorted()
+                .toArray();
+
+        if (sizes.length == 0) {
+            LogUtil.warn(OpenbravoProductPhotoWebService.class.getName(), "Invalid [" + PROPERTY_SIZES + "] value [" + value + "], using [" + DEFAULT_SIZES + "]");
+            return getSizes(DEFAULT_SIZES);
+        }
+
+        return sizes;
+    }
+
+    /**
+     * Conditional request, If-None-Match takes precedence over If-Modified-Since
+     */
+    protected boolean isNotModified(HttpServletRequest request, ProductImageCache.Image image) {
+        final String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            return "*".equals(ifNoneMatch.trim()) || Arrays.stream(ifNoneMatch.split(","))
+                    .map(String::trim)
+                    .map(s -> s.startsWith("W/") ? s.substring(2) : s)
+                    .anyMatch(image.getETag()::equals);
+        }
+
+        if (image.getLastModified() < 0) {
+            return false;
+        }
+
+        try {
+            final long ifModifiedSince = request.getDateHeader("If-Modified-Since");
+            return ifModifiedSince >= 0 && ifModifiedSince >= image.getLastModified() / 1000 * 1000;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    protected CloseableHttpClient getHttpClient(String baseUrl, boolean ignoreCertificate) throws RestClientException {
+        try {
+            return HttpClientPool.getHttpClient(baseUrl, ignoreCertificate);
+        } catch (OpenbravoClientException e) {
             throw new RestClientException(e);
         }
     }
 
+    /**
+     * Plugin default properties, cached per app version by {@link PluginDefaultPropertiesCache}
+     */
     @Override
     public Map<String, Object> getProperties() {
-        PluginDefaultPropertiesDao pluginDefaultPropertiesDao = (PluginDefaultPropertiesDao) AppUtil.getApplicationContext().getBean("pluginDefaultPropertiesDao");
-        AppDefinition appDefinition = AppUtil.getCurrentAppDefinition();
-        return Optional.ofNullable(pluginDefaultPropertiesDao.loadById(OpenbravoProductPhotoWebService.class.getName(), appDefinition))
-                .map(PluginDefaultProperties::getPluginProperties)
-                .map(s -> AppUtil.processHashVariable(s, null, StringUtil.TYPE_JSON, null))
-                .map(PropertyUtil::getPropertiesValueFromJson)
-                .orElseGet(Collections::emptyMap);
+        return PluginDefaultPropertiesCache.getDefaultProperties(getClassName());
     }
 
     @Override
     public String getPropertyString(String property) {
-        Map<String, Object> properties = getProperties();
-        String value = properties != null && properties.get(property) != null ? (String) properties.get(property) : "";
-        return value;
+        return getPropertyString(getProperties(), property);
+    }
+
+    protected String getPropertyString(Map<String, Object> properties, String property) {
+        return Optional.ofNullable(properties)
+                .map(m -> m.get(property))
+                .map(String::valueOf)
+                .orElse("");
     }
 
     protected String getAuthenticationHeader(String username, String password) {
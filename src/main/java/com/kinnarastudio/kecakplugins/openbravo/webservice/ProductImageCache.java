@@ -0,0 +1,338 @@
+package com.kinnarastudio.kecakplugins.openbravo.webservice;
+
+import com.kinnarastudio.kecakplugins.openbravo.commons.PropertyParser;
+import com.kinnarastudio.kecakplugins.openbravo.commons.TtlCache;
+import org.joget.commons.util.LogUtil;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Two tier cache of product images.
+ * <p>
+ * Images up to {@link #MEMORY_MAX_IMAGE_BYTES} are kept in memory only, bigger images are written to a disk
+ * directory and served from there using {@link FileChannel#transferTo(long, long, WritableByteChannel)}, so
+ * serving a small image never waits for disk I/O. Both tiers are bounded by size and
+ * evict least recently used images first. Files of evicted or replaced images are deleted after
+ * {@link #RETIRED_FILE_GRACE_PERIOD} ms, so responses still writing them are not cut short.
+ * Only files named <code>image*.bin</code> are written to and deleted from the directory. Tuned using system properties :
+ * <ul>
+ *     <li>{@value #PROPERTY_TTL} : time-to-live in seconds, default {@value #DEFAULT_TTL}</li>
+ *     <li>{@value #PROPERTY_MEMORY_MAX_BYTES} : memory tier size, default {@value #DEFAULT_MEMORY_MAX_BYTES}</li>
+ *     <li>{@value #PROPERTY_DISK_MAX_BYTES} : disk tier size, default {@value #DEFAULT_DISK_MAX_BYTES}</li>
+ *     <li>{@value #PROPERTY_DIRECTORY} : disk tier directory, default <code>${java.io.tmpdir}/openbravo-images</code></li>
+ * </ul>
+ */
+public class ProductImageCache {
+    public final static String PROPERTY_TTL = "openbravo.cache.images.ttl";
+    public final static String PROPERTY_MEMORY_MAX_BYTES = "openbravo.cache.images.memoryMaxBytes";
+    public final static String PROPERTY_DISK_MAX_BYTES = "openbravo.cache.images.diskMaxBytes";
+    public final static String PROPERTY_DIRECTORY = "openbravo.cache.images.dir";
+
+    public final static long DEFAULT_TTL = 3600;
+    public final static long DEFAULT_MEMORY_MAX_BYTES = 32L * 1024 * 1024;
+    public final static long DEFAULT_DISK_MAX_BYTES = 512L * 1024 * 1024;
+
+    /**
+     * Images bigger than this are kept on disk, smaller ones in memory
+     */
+    public final static int MEMORY_MAX_IMAGE_BYTES = 256 * 1024;
+
+    public final static long RETIRED_FILE_GRACE_PERIOD = TimeUnit.MINUTES.toMillis(10);
+
+    private final static String FILE_PREFIX = "image";
+    private final static String FILE_SUFFIX = ".bin";
+
+    private final static ProductImageCache INSTANCE = new ProductImageCache();
+
+    private final long ttl = TimeUnit.SECONDS.toMillis(PropertyParser.getSystemLong(PROPERTY_TTL, 0, DEFAULT_TTL));
+    private final long diskMaxBytes = PropertyParser.getSystemLong(PROPERTY_DISK_MAX_BYTES, 0, DEFAULT_DISK_MAX_BYTES);
+    private final TtlCache<String, Image> memoryCache = new TtlCache<>(PropertyParser.getSystemLong(PROPERTY_MEMORY_MAX_BYTES, 0, DEFAULT_MEMORY_MAX_BYTES), image -> image.getLength());
+
+    /**
+     * Disk tier index in access order, guarded by itself
+     */
+    private final LinkedHashMap<String, Image> diskIndex = new LinkedHashMap<>(16, 0.75f, true);
+    private long diskBytes = 0;
+
+    /**
+     * Files no longer in the index and the time they were removed, guarded by {@link #diskIndex}
+     */
+    private final Deque<Map.Entry<Path, Long>> retiredFiles = new ArrayDeque<>();
+
+    @Nullable
+    private final Path directory;
+
+    private ProductImageCache() {
+        directory = createDirectory(System.getProperty(PROPERTY_DIRECTORY, Paths.get(System.getProperty("java.io.tmpdir"), "openbravo-images").toString()));
+    }
+
+    public static ProductImageCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param key
+     * @return cached image, NULL when not found or expired
+     */
+    @Nullable
+    public Image get(@Nonnull String key) {
+        final Image memoryImage = memoryCache.get(key);
+        if (memoryImage != null) {
+            return memoryImage;
+        }
+
+        synchronized (diskIndex) {
+            purgeRetiredFiles();
+
+            final Image diskImage = diskIndex.get(key);
+            if (diskImage == null) {
+                return null;
+            }
+
+            if (diskImage.isExpired() || !Files.isReadable(diskImage.file)) {
+                removeFromDisk(key);
+                return null;
+            }
+
+            return diskImage;
+        }
+    }
+
+    /**
+     * Store image in memory, or on disk when it is bigger than {@link #MEMORY_MAX_IMAGE_BYTES}
+     *
+     * @param key
+     * @param contentType
+     * @param lastModified last modification time given by Openbravo, -1 when unknown
+     * @param content
+     * @return cached image
+     */
+    @Nonnull
+    public Image put(@Nonnull String key, @Nullable String contentType, long lastModified, @Nonnull byte[] content) {
+        final long now = System.currentTimeMillis();
+        final String eTag = "\"" + digest(content) + "\"";
+        final Image memoryImage = new Image(contentType, eTag, lastModified, now + ttl, content, null, content.length);
+
+        if (content.length <= MEMORY_MAX_IMAGE_BYTES) {
+            memoryCache.put(key, memoryImage, ttl);
+        } else if (directory != null && content.length <= diskMaxBytes) {
+            try {
+                // unique file per write, so a replaced image can be deleted while still being served
+                final Path file = Files.createTempFile(directory, FILE_PREFIX, FILE_SUFFIX);
+                Files.write(file, content);
+
+                synchronized (diskIndex) {
+                    purgeRetiredFiles();
+                    removeFromDisk(key);
+                    diskIndex.put(key, new Image(contentType, eTag, lastModified, now + ttl, null, file, content.length));
+                    diskBytes += content.length;
+
+                    final Iterator<Map.Entry<String, Image>> iterator = diskIndex.entrySet().iterator();
+                    while (diskBytes > diskMaxBytes && iterator.hasNext()) {
+                        final Map.Entry<String, Image> eldest = iterator.next();
+                        if (eldest.getKey().equals(key)) {
+                            continue;
+                        }
+
+                        iterator.remove();
+                        diskBytes -= eldest.getValue().length;
+                        retire(eldest.getValue().file);
+                    }
+                }
+            } catch (IOException e) {
+                LogUtil.error(getClass().getName(), e, "Error writing image [" + key + "] to disk cache");
+            }
+        }
+
+        return memoryImage;
+    }
+
+    public void invalidateAll() {
+        memoryCache.invalidateAll();
+        synchronized (diskIndex) {
+            diskIndex.values().forEach(image -> retire(image.file));
+            diskIndex.clear();
+            diskBytes = 0;
+            purgeRetiredFiles();
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (diskIndex) {
+            return "memory [" + memoryCache + "] disk [" + diskIndex.size() + " images, " + diskBytes + "/" + diskMaxBytes + " bytes]";
+        }
+    }
+
+    private void removeFromDisk(String key) {
+        final Image image = diskIndex.remove(key);
+        if (image != null) {
+            diskBytes -= image.length;
+            retire(image.file);
+        }
+    }
+
+    private void retire(@Nullable Path file) {
+        if (file != null) {
+            retiredFiles.add(new AbstractMap.SimpleImmutableEntry<>(file, System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * Delete retired files older than {@link #RETIRED_FILE_GRACE_PERIOD}, caller holds {@link #diskIndex}
+     */
+    private void purgeRetiredFiles() {
+        final long deadline = System.currentTimeMillis() - RETIRED_FILE_GRACE_PERIOD;
+        while (!retiredFiles.isEmpty() && retiredFiles.peek().getValue() <= deadline) {
+            deleteQuietly(retiredFiles.poll().getKey());
+        }
+    }
+
+    private static boolean isCacheFile(Path file) {
+        final String name = file.getFileName().toString();
+        return name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX);
+    }
+
+    @Nullable
+    private Path createDirectory(String path) {
+        try {
+            final Path directory = Files.createDirectories(Paths.get(path));
+
+            // index is not persisted, leftovers of previous run are unknown. Other files are left alone
+            try (Stream<Path> files = Files.list(directory)) {
+                files.filter(Files::isRegularFile)
+                        .filter(ProductImageCache::isCacheFile)
+                        .forEach(this::deleteQuietly);
+            }
+
+            return directory;
+        } catch (IOException e) {
+            LogUtil.error(getClass().getName(), e, "Disk cache [" + path + "] is not available, using memory only");
+            return null;
+        }
+    }
+
+    private void deleteQuietly(@Nullable Path file) {
+        if (file == null) {
+            return;
+        }
+
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            LogUtil.warn(getClass().getName(), "Error deleting [" + file + "] : " + e.getMessage());
+        }
+    }
+
+    private static String digest(byte[] content) {
+        try {
+            final byte[] hash = MessageDigest.getInstance("SHA-1").digest(content);
+            final StringBuilder sb = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Cached image, content is either in memory or in a file
+     */
+    public static class Image {
+        @Nullable
+        private final String contentType;
+        private final String eTag;
+        private final long lastModified;
+        private final long expiredAt;
+        @Nullable
+        private final byte[] content;
+        @Nullable
+        private final Path file;
+        private final long length;
+
+        private Image(@Nullable String contentType, String eTag, long lastModified, long expiredAt, @Nullable byte[] content, @Nullable Path file, long length) {
+            this.contentType = contentType;
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+            this.expiredAt = expiredAt;
+            this.content = content;
+            this.file = file;
+            this.length = length;
+        }
+
+        @Nullable
+        public String getContentType() {
+            return contentType;
+        }
+
+        public String getETag() {
+            return eTag;
+        }
+
+        /**
+         * @return last modification time given by Openbravo, -1 when unknown
+         */
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * @return seconds until image expires
+         */
+        public long getMaxAge() {
+            return Math.max(0, TimeUnit.MILLISECONDS.toSeconds(expiredAt - System.currentTimeMillis()));
+        }
+
+        public boolean isExpired() {
+            return System.currentTimeMillis() >= expiredAt;
+        }
+
+        /**
+         * Write content, files are transferred channel to channel without copying through a heap buffer
+         *
+         * @param outputStream
+         * @throws IOException
+         */
+        public void writeTo(OutputStream outputStream) throws IOException {
+            if (content != null) {
+                outputStream.write(content);
+            } else if (file != null) {
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                    final WritableByteChannel target = Channels.newChannel(outputStream);
+                    final long size = channel.size();
+                    long position = 0;
+                    while (position < size) {
+                        position += channel.transferTo(position, size - position, target);
+                    }
+                }
+            }
+            outputStream.flush();
+        }
+    }
+}
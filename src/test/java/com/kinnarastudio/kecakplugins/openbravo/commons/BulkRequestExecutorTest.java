@@ -0,0 +1,70 @@
+package com.kinnarastudio.kecakplugins.openbravo.commons;
+
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class BulkRequestExecutorTest {
+
+    @Test
+    public void testNoFailures() throws InterruptedException {
+        final Map<String, String> failures = BulkRequestExecutor.execute(Arrays.asList("a", "b", "c"), 2, key -> {
+        });
+
+        assertTrue(failures.isEmpty());
+    }
+
+    @Test
+    public void testNoKeys() throws InterruptedException {
+        final Map<String, String> failures = BulkRequestExecutor.execute(Collections.<String>emptyList(), 4, key -> fail("No request expected"));
+
+        assertTrue(failures.isEmpty());
+    }
+
+    @Test
+    public void testFailuresInKeyOrder() throws InterruptedException {
+        final List<Integer> keys = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            keys.add(i);
+        }
+
+        final Map<Integer, String> failures = BulkRequestExecutor.execute(keys, 4, key -> {
+            if (key % 10 == 3) {
+                throw new Exception("failed " + key);
+            }
+        });
+
+        assertEquals(Arrays.asList(3, 13, 23, 33, 43), new ArrayList<>(failures.keySet()));
+        assertEquals("failed 23", failures.get(23));
+    }
+
+    @Test
+    public void testFailureWithoutMessage() throws InterruptedException {
+        final Map<String, String> failures = BulkRequestExecutor.execute(Collections.singletonList("a"), 1, key -> {
+            throw new IllegalStateException();
+        });
+
+        assertEquals("IllegalStateException", failures.get("a"));
+    }
+
+    @Test
+    public void testEveryKeySentOnce() throws InterruptedException {
+        final List<Integer> keys = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            keys.add(i);
+        }
+
+        final Map<Integer, AtomicInteger> sent = new ConcurrentHashMap<>();
+        final Map<Integer, String> failures = BulkRequestExecutor.execute(keys, 8, key -> sent.computeIfAbsent(key, k -> new AtomicInteger()).incrementAndGet());
+
+        assertTrue(failures.isEmpty());
+        assertEquals(keys.size(), sent.size());
+        for (AtomicInteger count : sent.values()) {
+            assertEquals(1, count.get());
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.kinnarastudio.kecakplugins.openbravo.commons;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class RefreshAheadCacheTest {
+    private final static long TTL = 60000;
+
+    @Test
+    public void testLoadedValueIsCached() throws Exception {
+        final RefreshAheadCache<String, String> cache = new RefreshAheadCache<>(10, 1.0);
+        final AtomicInteger loadCount = new AtomicInteger();
+
+        assertEquals("v1", cache.get("a", TTL, () -> "v" + loadCount.incrementAndGet()));
+        assertEquals("v1", cache.get("a", TTL, () -> "v" + loadCount.incrementAndGet()));
+        assertEquals(1, loadCount.get());
+    }
+
+    @Test
+    public void testZeroTtlAlwaysLoads() throws Exception {
+        final RefreshAheadCache<String, String> cache = new RefreshAheadCache<>(10, 1.0);
+        final AtomicInteger loadCount = new AtomicInteger();
+
+        assertEquals("v1", cache.get("a", 0, () -> "v" + loadCount.incrementAndGet()));
+        assertEquals("v2", cache.get("a", 0, () -> "v" + loadCount.incrementAndGet()));
+    }
+
+    @Test
+    public void testInvalidatedEntryIsReloaded() throws Exception {
+        final RefreshAheadCache<String, String> cache = new RefreshAheadCache<>(10, 1.0);
+        cache.get("a", TTL, () -> "v1");
+        cache.get("b", TTL, () -> "v1");
+
+        cache.invalidateIf("a"::equals);
+
+        assertEquals("v2", cache.get("a", TTL, () -> "v2"));
+        assertEquals("v1", cache.get("b", TTL, () -> "v2"));
+    }
+
+    @Test
+    public void testInvalidationDuringLoadIsNotOverwritten() throws Exception {
+        final RefreshAheadCache<String, String> cache = new RefreshAheadCache<>(10, 1.0);
+
+        // value loaded before the invalidation is returned, but not cached
+        assertEquals("v1", cache.get("a", TTL, () -> {
+            cache.invalidateIf("a"::equals);
+            return "v1";
+        }));
+
+        assertEquals("v2", cache.get("a", TTL, () -> "v2"));
+    }
+
+    @Test
+    public void testInvalidationOfOtherKeyDuringLoadIsIgnored() throws Exception {
+        final RefreshAheadCache<String, String> cache = new RefreshAheadCache<>(10, 1.0);
+
+        cache.get("a", TTL, () -> {
+            cache.invalidateIf("b"::equals);
+            return "v1";
+        });
+
+        assertEquals("v1", cache.get("a", TTL, () -> "v2"));
+    }
+
+    @Test
+    public void testInvalidateAllDuringLoad() throws Exception {
+        final RefreshAheadCache<String, String> cache = new RefreshAheadCache<>(10, 1.0);
+        cache.get("b", TTL, () -> "v1");
+
+        cache.get("a", TTL, () -> {
+            cache.invalidateAll();
+            return "v1";
+        });
+
+        assertEquals("v2", cache.get("a", TTL, () -> "v2"));
+        assertEquals("v2", cache.get("b", TTL, () -> "v2"));
+    }
+
+    @Test
+    public void testFailedLoadIsNotCached() throws Exception {
+        final RefreshAheadCache<String, String> cache = new RefreshAheadCache<>(10, 1.0);
+        try {
+            cache.get("a", TTL, () -> {
+                throw new IllegalStateException("failed");
+            });
+            fail("Loader exception expected");
+        } catch (IllegalStateException e) {
+            assertEquals("failed", e.getMessage());
+        }
+
+        assertEquals("v1", cache.get("a", TTL, () -> "v1"));
+    }
+}
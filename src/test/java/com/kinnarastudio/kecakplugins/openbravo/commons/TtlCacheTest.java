@@ -0,0 +1,106 @@
+package com.kinnarastudio.kecakplugins.openbravo.commons;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TtlCacheTest {
+    private final static long TTL = 60000;
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() {
+        final TtlCache<String, String> cache = new TtlCache<>(2, value -> 1);
+        cache.put("a", "A", TTL);
+        cache.put("b", "B", TTL);
+
+        // "a" becomes most recently used
+        assertEquals("A", cache.get("a"));
+
+        cache.put("c", "C", TTL);
+
+        assertNull(cache.get("b"));
+        assertEquals("A", cache.get("a"));
+        assertEquals("C", cache.get("c"));
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictionCount());
+    }
+
+    @Test
+    public void testWeightIsBounded() {
+        final TtlCache<String, String> cache = new TtlCache<>(5, String::length);
+        cache.put("a", "AAA", TTL);
+        cache.put("b", "BB", TTL);
+        assertEquals(5, cache.getWeight());
+
+        cache.put("c", "C", TTL);
+        assertNull(cache.get("a"));
+        assertEquals(3, cache.getWeight());
+
+        // heavier than the cache itself, not cached
+        cache.put("d", "DDDDDD", TTL);
+        assertNull(cache.get("d"));
+        assertEquals(3, cache.getWeight());
+    }
+
+    @Test
+    public void testReplacedValueIsWeighedOnce() {
+        final TtlCache<String, String> cache = new TtlCache<>(10, String::length);
+        cache.put("a", "AAA", TTL);
+        cache.put("a", "AAAA", TTL);
+
+        assertEquals("AAAA", cache.get("a"));
+        assertEquals(1, cache.size());
+        assertEquals(4, cache.getWeight());
+    }
+
+    @Test
+    public void testExpiredEntryIsRemoved() throws InterruptedException {
+        final TtlCache<String, String> cache = new TtlCache<>(10, value -> 1);
+        cache.put("a", "A", 20);
+        cache.put("b", "B", TTL);
+
+        Thread.sleep(50);
+
+        assertNull(cache.get("a"));
+        assertEquals("B", cache.get("b"));
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.getWeight());
+    }
+
+    @Test
+    public void testZeroTtlIsNotCached() {
+        final TtlCache<String, String> cache = new TtlCache<>(10, value -> 1);
+        cache.put("a", "A", 0);
+
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testInvalidateIf() {
+        final TtlCache<String, String> cache = new TtlCache<>(10, value -> 1);
+        cache.put("a1", "A", TTL);
+        cache.put("a2", "A", TTL);
+        cache.put("b1", "B", TTL);
+
+        cache.invalidateIf(key -> key.startsWith("a"));
+
+        assertNull(cache.get("a1"));
+        assertNull(cache.get("a2"));
+        assertEquals("B", cache.get("b1"));
+        assertEquals(1, cache.getWeight());
+    }
+
+    @Test
+    public void testHitAndMissCount() {
+        final TtlCache<String, String> cache = new TtlCache<>(10, value -> 1);
+        cache.put("a", "A", TTL);
+
+        cache.get("a");
+        cache.get("a");
+        cache.get("b");
+
+        assertEquals(2, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+}
@@ -0,0 +1,157 @@
+package com.kinnarastudio.kecakplugins.openbravo.form;
+
+import com.kinnarastudio.kecakplugins.openbravo.service.OpenbravoService;
+import com.kinnarastudio.obclient.exceptions.OpenbravoClientException;
+import org.joget.apps.form.model.FormRow;
+import org.joget.apps.form.model.FormRowSet;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import java.math.BigDecimal;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class OpenbravoGridBinderTest {
+    private final static String FOREIGN_KEY = "salesOrder";
+    private final static String PARENT_ID = "PARENT";
+
+    private final Map<String, Map<String, Object>> currentRecords = new LinkedHashMap<>();
+    private final List<String> deleted = new ArrayList<>();
+    private final List<Map<String, Object>> posted = new ArrayList<>();
+    private final Set<String> failingDeletes = new HashSet<>();
+
+    private final OpenbravoGridBinder binder = new OpenbravoGridBinder() {
+        @Override
+        protected Map<String, Map<String, Object>> getCurrentRecords(OpenbravoService obService, String baseUrl, String tableEntity, String username, String password, String foreignKey, String foreignKeyValue) {
+            return currentRecords;
+        }
+    };
+
+    private final OpenbravoService obService = new OpenbravoService(OpenbravoService.builder()) {
+        @Override
+        public Map<String, String> delete(@Nonnull String baseUrl, @Nonnull String tableEntity, @Nonnull String primaryKey, @Nonnull String username, @Nonnull String password) throws OpenbravoClientException {
+            if (failingDeletes.contains(primaryKey)) {
+                throw new OpenbravoClientException("Cannot delete [" + primaryKey + "]");
+            }
+
+            synchronized (deleted) {
+                deleted.add(primaryKey);
+            }
+            return Collections.singletonMap("id", primaryKey);
+        }
+
+        @Override
+        public Map<String, Object>[] post(@Nonnull String baseUrl, @Nonnull String tableEntity, @Nonnull String username, @Nonnull String password, @Nonnull Map<String, Object>[] rows) {
+            final List<Map<String, Object>> result = new ArrayList<>();
+            for (Map<String, Object> row : rows) {
+                posted.add(row);
+                final Map<String, Object> record = new HashMap<>(row);
+                record.putIfAbsent("id", "NEW" + posted.size());
+                result.add(record);
+            }
+            return result.toArray(new Map[0]);
+        }
+    };
+
+    @Test
+    public void testNewUpdatedAndDeletedRows() throws Exception {
+        addCurrentRecord("A", "Apple", 1, true);
+        addCurrentRecord("B", "Banana", 2, true);
+        addCurrentRecord("C", "Cherry", 3, true);
+        addCurrentRecord("D", "Durian", 4, false);
+
+        final List<Map.Entry<FormRow, Map<String, Object>>> rows = Arrays.asList(
+                row("A", "Apple", "1.0"),
+                row("B", "Banana", "5"),
+                row(null, "Elderberry", "6"));
+
+        final FormRowSet result = binder.sync(obService, "", "OrderLine", "", "", FOREIGN_KEY, PARENT_ID, rows, false, 1, false);
+
+        // removed active row is deleted, inactive row is not shown and kept
+        assertEquals(Collections.singletonList("C"), deleted);
+
+        // unchanged row is not posted, changed row only sends changed properties
+        assertEquals(2, posted.size());
+
+        final Map<String, Object> updated = posted.get(0);
+        assertEquals("B", updated.get("id"));
+        assertEquals(0, new BigDecimal("5").compareTo((BigDecimal) updated.get("quantity")));
+        assertFalse(updated.containsKey("name"));
+        assertFalse(updated.containsKey(FOREIGN_KEY));
+
+        final Map<String, Object> created = posted.get(1);
+        assertNull(created.get("id"));
+        assertEquals("Elderberry", created.get("name"));
+        assertEquals(PARENT_ID, created.get(FOREIGN_KEY));
+
+        // submitted order, new row carries the posted ID
+        assertEquals(3, result.size());
+        assertEquals("A", result.get(0).getId());
+        assertEquals("B", result.get(1).getId());
+        assertEquals("NEW2", result.get(2).getId());
+    }
+
+    @Test
+    public void testInactiveRowsDeletedWhenShown() throws Exception {
+        addCurrentRecord("A", "Apple", 1, true);
+        addCurrentRecord("D", "Durian", 4, false);
+
+        binder.sync(obService, "", "OrderLine", "", "", FOREIGN_KEY, PARENT_ID, Collections.emptyList(), true, 2, false);
+
+        assertEquals(new HashSet<>(Arrays.asList("A", "D")), new HashSet<>(deleted));
+        assertTrue(posted.isEmpty());
+    }
+
+    @Test
+    public void testInactiveRowIsUpdated() throws Exception {
+        addCurrentRecord("D", "Durian", 4, false);
+
+        final FormRowSet result = binder.sync(obService, "", "OrderLine", "", "", FOREIGN_KEY, PARENT_ID, Collections.singletonList(row("D", "Durian", "7")), false, 1, false);
+
+        assertTrue(deleted.isEmpty());
+        assertEquals(1, posted.size());
+        assertEquals("D", posted.get(0).get("id"));
+        assertEquals("D", result.get(0).getId());
+    }
+
+    @Test
+    public void testFailedDeleteSavesNothing() {
+        addCurrentRecord("A", "Apple", 1, true);
+        addCurrentRecord("B", "Banana", 2, true);
+        failingDeletes.add("B");
+
+        try {
+            binder.sync(obService, "", "OrderLine", "", "", FOREIGN_KEY, PARENT_ID, Collections.singletonList(row(null, "Elderberry", "6")), false, 1, false);
+            fail("Delete failure expected");
+        } catch (Exception e) {
+            assertTrue(e instanceof OpenbravoClientException);
+        }
+
+        assertTrue(posted.isEmpty());
+    }
+
+    private void addCurrentRecord(String id, String name, int quantity, boolean active) {
+        final Map<String, Object> record = new HashMap<>();
+        record.put("id", id);
+        record.put("name", name);
+        record.put("quantity", quantity);
+        record.put("active", active);
+        record.put(FOREIGN_KEY, PARENT_ID);
+        currentRecords.put(id, record);
+    }
+
+    private Map.Entry<FormRow, Map<String, Object>> row(String id, String name, String quantity) {
+        final FormRow row = new FormRow();
+        if (id != null) {
+            row.setId(id);
+        }
+        row.setProperty("name", name);
+        row.setProperty("quantity", quantity);
+
+        final Map<String, Object> record = new HashMap<>();
+        record.put("name", name);
+        record.put("quantity", new BigDecimal(quantity));
+        return new AbstractMap.SimpleImmutableEntry<>(row, record);
+    }
+}
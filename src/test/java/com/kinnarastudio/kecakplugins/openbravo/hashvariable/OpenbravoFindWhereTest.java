@@ -0,0 +1,52 @@
+package com.kinnarastudio.kecakplugins.openbravo.hashvariable;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class OpenbravoFindWhereTest {
+    private final OpenbravoFindWhere findWhere = new OpenbravoFindWhere();
+
+    @Test
+    public void testEntityWhereAndField() {
+        final OpenbravoFindWhere.ParsedKey parsedKey = findWhere.parseKey("BusinessPartner[searchKey='C001'].name");
+
+        assertEquals("BusinessPartner", parsedKey.getTableEntity());
+        assertEquals("searchKey='C001'", parsedKey.getWhere());
+        assertEquals("name", parsedKey.getField());
+    }
+
+    @Test
+    public void testWhereWithBracketsAndDots() {
+        final OpenbravoFindWhere.ParsedKey parsedKey = findWhere.parseKey("Product[name in ('[A]', 'B.1') and price > 1.5].searchKey");
+
+        assertEquals("Product", parsedKey.getTableEntity());
+        assertEquals("name in ('[A]', 'B.1') and price > 1.5", parsedKey.getWhere());
+        assertEquals("searchKey", parsedKey.getField());
+    }
+
+    @Test
+    public void testWithoutWhere() {
+        final OpenbravoFindWhere.ParsedKey parsedKey = findWhere.parseKey("Product.searchKey");
+
+        assertEquals("Product", parsedKey.getTableEntity());
+        assertEquals("1=1", parsedKey.getWhere());
+        assertEquals("searchKey", parsedKey.getField());
+    }
+
+    @Test
+    public void testWithoutField() {
+        final OpenbravoFindWhere.ParsedKey parsedKey = findWhere.parseKey("Product[active=true]");
+
+        assertEquals("Product", parsedKey.getTableEntity());
+        assertEquals("active=true", parsedKey.getWhere());
+        assertEquals("", parsedKey.getField());
+    }
+
+    @Test
+    public void testParsedKeyIsCached() {
+        final String key = "Product[searchKey='P001'].name";
+
+        assertSame(findWhere.parseKey(key), new OpenbravoFindWhere().parseKey(key));
+    }
+}
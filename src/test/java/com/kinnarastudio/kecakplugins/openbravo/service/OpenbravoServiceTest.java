@@ -0,0 +1,88 @@
+package com.kinnarastudio.kecakplugins.openbravo.service;
+
+import com.google.gson.stream.JsonReader;
+import org.json.JSONException;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class OpenbravoServiceTest {
+    private final OpenbravoService obService = OpenbravoService.builder().build();
+
+    @Test
+    public void testDataBeforeStatus() throws IOException, JSONException {
+        final List<Map<String, Object>> records = new ArrayList<>();
+        final Map<String, Object> response = read("{\"response\":{\"startRow\":0,\"data\":[{\"id\":\"A\",\"qty\":1},{\"id\":\"B\",\"qty\":2.5}],\"totalRows\":2,\"status\":0}}", records);
+
+        assertEquals(2, records.size());
+        assertEquals("A", records.get(0).get("id"));
+        assertEquals(1, records.get(0).get("qty"));
+        assertEquals("B", records.get(1).get("id"));
+        assertEquals(2.5, records.get(1).get("qty"));
+
+        assertEquals(0, obService.getResponseStatus(response));
+        assertEquals(2, response.get("totalRows"));
+        assertFalse(response.containsKey("data"));
+    }
+
+    @Test
+    public void testStatusBeforeData() throws IOException, JSONException {
+        final List<Map<String, Object>> records = new ArrayList<>();
+        final Map<String, Object> response = read("{\"response\":{\"status\":0,\"data\":[{\"id\":\"A\"}]}}", records);
+
+        assertEquals(1, records.size());
+        assertEquals(0, obService.getResponseStatus(response));
+    }
+
+    @Test
+    public void testErrorStatusBeforeDataSkipsData() throws IOException, JSONException {
+        final List<Map<String, Object>> records = new ArrayList<>();
+        final Map<String, Object> response = read("{\"response\":{\"status\":-4,\"data\":[{\"id\":\"A\"}],\"errors\":{\"name\":\"required\"}}}", records);
+
+        assertTrue(records.isEmpty());
+        assertEquals(-4, obService.getResponseStatus(response));
+        assertTrue(response.containsKey("errors"));
+    }
+
+    @Test
+    public void testErrorStatusAfterDataIsReturned() throws IOException, JSONException {
+        final List<Map<String, Object>> records = new ArrayList<>();
+        final Map<String, Object> response = read("{\"response\":{\"data\":[{\"id\":\"A\"}],\"status\":-1}}", records);
+
+        // records were passed before the status was known, callers check the status
+        assertEquals(1, records.size());
+        assertEquals(-1, obService.getResponseStatus(response));
+    }
+
+    @Test
+    public void testSingleRecordData() throws IOException, JSONException {
+        final List<Map<String, Object>> records = new ArrayList<>();
+        final Map<String, Object> response = read("{\"response\":{\"status\":0,\"data\":{\"id\":\"A\",\"active\":true}}}", records);
+
+        assertEquals(1, records.size());
+        assertEquals("A", records.get(0).get("id"));
+        assertEquals(Boolean.TRUE, records.get(0).get("active"));
+        assertEquals(0, obService.getResponseStatus(response));
+    }
+
+    @Test
+    public void testOtherAttributesAreSkipped() throws IOException, JSONException {
+        final List<Map<String, Object>> records = new ArrayList<>();
+        final Map<String, Object> response = read("{\"version\":1,\"response\":{\"status\":0,\"data\":[]},\"debug\":{\"time\":10}}", records);
+
+        assertTrue(records.isEmpty());
+        assertEquals(0, obService.getResponseStatus(response));
+    }
+
+    private Map<String, Object> read(String json, List<Map<String, Object>> records) throws IOException, JSONException {
+        try (JsonReader reader = new JsonReader(new StringReader(json))) {
+            return obService.readResponse(reader, records::add);
+        }
+    }
+}